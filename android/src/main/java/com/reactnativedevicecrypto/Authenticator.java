@@ -1,93 +1,192 @@
 package com.reactnativedevicecrypto;
 
 import android.app.Activity;
-import android.util.Log;
+import android.os.Build;
+import android.security.keystore.KeyPermanentlyInvalidatedException;
 import androidx.annotation.IntDef;
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.biometric.BiometricManager.Authenticators;
 import androidx.biometric.BiometricPrompt;
 import androidx.fragment.app.FragmentActivity;
 import com.facebook.react.bridge.ReadableMap;
 import com.facebook.react.bridge.UiThreadUtil;
-import com.facebook.react.bridge.Promise;
 import java.lang.annotation.Retention;
+import java.security.Signature;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.WeakHashMap;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
+import javax.crypto.Cipher;
 import static com.reactnativedevicecrypto.Constants.BIOMETRY_DESCRIPTION;
 import static com.reactnativedevicecrypto.Constants.BIOMETRY_SUBTITLE;
 import static com.reactnativedevicecrypto.Constants.BIOMETRY_TITLE;
-import static com.reactnativedevicecrypto.Constants.RN_MODULE;
-import static com.reactnativedevicecrypto.Constants.E_ERROR;
 import static java.lang.annotation.RetentionPolicy.SOURCE;
 
 public class Authenticator {
-    private static BiometricPrompt biometricPrompt;
+    // Shared by all prompts instead of leaving a new thread behind on each authentication
+    private static final Executor executor = Executors.newSingleThreadExecutor();
+    // Prompts of an activity share one BiometricViewModel, a second prompt would take over the callback
+    // of the one on screen and leave its operation unsettled. They're shown one at a time. UI thread only.
+    private static final Map<Activity, ArrayDeque<Runnable>> promptQueues = new WeakHashMap<>();
 
     public interface Cryptography {
         @Retention(SOURCE)
-        @IntDef({NONE, ENCRYPT, DECRYPT, SIGN, VERIFY})
+        @IntDef({NONE, ENCRYPT, DECRYPT, SIGN, VERIFY, SIGN_JWS, SIGN_COSE, UNLOCK})
         @interface Types {}
         int NONE = 0;
         int ENCRYPT = 1;
         int DECRYPT = 2;
         int SIGN = 3;
         int VERIFY = 4;
+        int SIGN_JWS = 5;
+        int SIGN_COSE = 6;
+        // Opens the authentication validity window of time bound keys
+        int UNLOCK = 7;
     }
 
-    public static void authenticate(@Cryptography.Types int cryptographyType, @NonNull String plainText, ReadableMap options, BiometricPrompt.CryptoObject cryptoObject, Activity activity, final Promise promise) {
-        _authenticate(cryptographyType, plainText, options, cryptoObject, activity, promise);
+    public interface Deferred {
+        /**
+         * Runs once the user authenticated, its result resolves the operation.
+         */
+        Object run() throws Exception;
     }
 
-    public static void authenticate(ReadableMap options, Activity activity, final Promise promise) {
-        _authenticate(Cryptography.NONE, "", options, null, activity, promise);
+    /**
+     * `onKeyInvalidated` runs when the key turns out to be invalidated after the user authenticated.
+     */
+    public static void authenticate(@Cryptography.Types int cryptographyType, @NonNull Object input, ReadableMap options, BiometricPrompt.CryptoObject cryptoObject, Activity activity, @NonNull InFlightOperations.Entry operation, @Nullable Runnable onKeyInvalidated) {
+        _authenticate(cryptographyType, input, options, cryptoObject, activity, operation, onKeyInvalidated, null);
     }
 
-    protected static void _authenticate(@Cryptography.Types int cryptographyType, @NonNull String plainText, ReadableMap options, BiometricPrompt.CryptoObject cryptoObject, Activity activity, final Promise promise) {
+    public static void authenticate(ReadableMap options, Activity activity, @NonNull InFlightOperations.Entry operation) {
+        _authenticate(Cryptography.NONE, "", options, null, activity, operation, null, null);
+    }
+
+    public static void authenticateForKeys(ReadableMap options, Activity activity, @NonNull InFlightOperations.Entry operation) {
+        _authenticate(Cryptography.UNLOCK, "", options, null, activity, operation, null, null);
+    }
+
+    /**
+     * Time bound keys cannot be initialized outside of their validity window, so they cannot be given
+     * to the prompt. The prompt opens the window, then `cryptography` initializes and uses the key.
+     */
+    public static void authenticateForKey(ReadableMap options, Activity activity, @NonNull InFlightOperations.Entry operation, @NonNull Deferred cryptography, @Nullable Runnable onKeyInvalidated) {
+        _authenticate(Cryptography.UNLOCK, "", options, null, activity, operation, onKeyInvalidated, cryptography);
+    }
+
+    /**
+     * Completes the operation of an initialized Signature or Cipher. `input` is the text, or the
+     * CBOR payload bytes for SIGN_COSE.
+     */
+    public static Object finish(@Cryptography.Types int cryptographyType, @NonNull Object input, @NonNull Object engine) throws Exception {
+        switch (cryptographyType) {
+            case Cryptography.SIGN:
+                String signature = Helpers.sign((String) input, (Signature) engine);
+                if (signature.isEmpty()) {
+                    throw new Exception("Couldn't sign the text");
+                }
+                return signature;
+            case Cryptography.SIGN_JWS:
+                return TokenSigner.signJws((String) input, (Signature) engine);
+            case Cryptography.SIGN_COSE:
+                return TokenSigner.signCose((byte[]) input, (Signature) engine);
+            case Cryptography.DECRYPT:
+                return Helpers.decrypt((String) input, (Cipher) engine);
+            case Cryptography.ENCRYPT:
+                return Helpers.encrypt((String) input, (Cipher) engine);
+            default:
+                return true;
+        }
+    }
+
+    // Shows the prompt once the ones queued before it on the activity have settled
+    private static void enqueuePrompt(@NonNull Activity activity, @NonNull InFlightOperations.Entry operation, @NonNull Runnable show) {
+        ArrayDeque<Runnable> queue = promptQueues.get(activity);
+        if (queue == null) {
+            queue = new ArrayDeque<>();
+            promptQueues.put(activity, queue);
+        }
+        queue.add(() -> {
+            // Settled by the user, an error or a cancel, the next prompt can take over the view model
+            operation.whenSettled(() -> UiThreadUtil.runOnUiThread(() -> showNextPrompt(activity)));
+            show.run();
+        });
+        if (queue.size() == 1) {
+            queue.peek().run();
+        }
+    }
+
+    private static void showNextPrompt(@NonNull Activity activity) {
+        ArrayDeque<Runnable> queue = promptQueues.get(activity);
+        if (queue == null) {
+            return;
+        }
+        queue.poll();
+        Runnable next = queue.peek();
+        if (next == null) {
+            promptQueues.remove(activity);
+        } else {
+            next.run();
+        }
+    }
+
+    // Settling the operation releases its keystore slot and lets it be cancelled while the prompt is shown
+    protected static void _authenticate(@Cryptography.Types int cryptographyType, @NonNull Object input, ReadableMap options, BiometricPrompt.CryptoObject cryptoObject, Activity activity, @NonNull InFlightOperations.Entry operation, @Nullable Runnable onKeyInvalidated, @Nullable Deferred cryptography) {
         UiThreadUtil.runOnUiThread(new Runnable() {
             @Override
             public void run() {
                 try {
-                    Executor executor = Executors.newSingleThreadExecutor();
                     String title = options.hasKey("biometryTitle") ? options.getString("biometryTitle") : BIOMETRY_TITLE;
                     String subTitle = options.hasKey("biometrySubTitle") ? options.getString("biometrySubTitle") : BIOMETRY_SUBTITLE;
                     String description = options.hasKey("biometryDescription") ? options.getString("biometryDescription") : BIOMETRY_DESCRIPTION;
 
-                    BiometricPrompt.PromptInfo promptInfo = new BiometricPrompt.PromptInfo.Builder()
+                    BiometricPrompt.PromptInfo.Builder promptBuilder = new BiometricPrompt.PromptInfo.Builder()
                             .setTitle(title)
                             .setSubtitle(subTitle)
-                            .setDescription(description)
-                            .setNegativeButtonText("Cancel")
-                            .build();
+                            .setDescription(description);
+                    if (cryptographyType == Cryptography.UNLOCK && Build.VERSION.SDK_INT >= Build.VERSION_CODES.R) {
+                        // Same authenticators as time bound keys accept, the prompt offers pin/pass itself
+                        promptBuilder.setAllowedAuthenticators(Authenticators.BIOMETRIC_STRONG | Authenticators.DEVICE_CREDENTIAL);
+                    } else {
+                        if (cryptographyType == Cryptography.UNLOCK) {
+                            // Weak biometrics don't authorize keystore keys
+                            promptBuilder.setAllowedAuthenticators(Authenticators.BIOMETRIC_STRONG);
+                        }
+                        promptBuilder.setNegativeButtonText("Cancel");
+                    }
+                    BiometricPrompt.PromptInfo promptInfo = promptBuilder.build();
 
                     BiometricPrompt.AuthenticationCallback authCallback = new BiometricPrompt.AuthenticationCallback() {
                         @Override
                         public void onAuthenticationError(int errorCode, @NonNull CharSequence errString) {
                             super.onAuthenticationError(errorCode, errString);
-                            promise.reject(E_ERROR, String.valueOf(errorCode).concat("- ").concat(errString.toString()));
-                            biometricPrompt.cancelAuthentication();
-                            return;
+                            operation.reject(String.valueOf(errorCode).concat("- ").concat(errString.toString()));
                         }
 
                         @Override
                         public void onAuthenticationSucceeded(@NonNull BiometricPrompt.AuthenticationResult result) {
                             super.onAuthenticationSucceeded(result);
+                            // Cancelled meanwhile, the engine has already been finished
+                            if (!operation.claim()) {
+                                return;
+                            }
                             BiometricPrompt.CryptoObject cryptoObject = result.getCryptoObject();
                             try {
-                                switch (cryptographyType) {
-                                    case Cryptography.SIGN:
-                                        promise.resolve(Helpers.sign(plainText, cryptoObject.getSignature()));
-                                        return;
-                                    case Cryptography.DECRYPT:
-                                        promise.resolve(Helpers.decrypt(plainText, cryptoObject.getCipher()));
-                                        return;
-                                    case Cryptography.ENCRYPT:
-                                        promise.resolve(Helpers.encrypt(plainText, cryptoObject.getCipher()));
-                                        return;
-                                    case Cryptography.NONE:
-                                        promise.resolve(true);
-                                        return;
+                                Object response = true;
+                                if (cryptography != null) {
+                                    response = cryptography.run();
+                                } else if (cryptoObject != null) {
+                                    Object engine = cryptoObject.getSignature() != null ? cryptoObject.getSignature() : cryptoObject.getCipher();
+                                    response = finish(cryptographyType, input, engine);
                                 }
+                                operation.resolve(response);
                             } catch (Exception e) {
-                                promise.reject(E_ERROR, Helpers.getError(e));
+                                if (e instanceof KeyPermanentlyInvalidatedException && onKeyInvalidated != null) {
+                                    onKeyInvalidated.run();
+                                }
+                                operation.reject(Helpers.getError(e));
                             }
                         }
 
@@ -98,14 +197,24 @@ public class Authenticator {
                         }
                     };
 
-                    biometricPrompt = new BiometricPrompt((FragmentActivity) activity, executor, authCallback);
-                    if (cryptographyType == Cryptography.NONE) {
-                        biometricPrompt.authenticate(promptInfo);
-                    } else {
-                        biometricPrompt.authenticate(promptInfo, cryptoObject);
-                    }
+                    enqueuePrompt(activity, operation, () -> {
+                        try {
+                            BiometricPrompt biometricPrompt = new BiometricPrompt((FragmentActivity) activity, executor, authCallback);
+                            // Cancelled before the prompt could be shown
+                            if (!operation.attach(biometricPrompt)) {
+                                return;
+                            }
+                            if (cryptographyType == Cryptography.NONE || cryptographyType == Cryptography.UNLOCK) {
+                                biometricPrompt.authenticate(promptInfo);
+                            } else {
+                                biometricPrompt.authenticate(promptInfo, cryptoObject);
+                            }
+                        } catch (Exception e) {
+                            operation.reject(Helpers.getError(e));
+                        }
+                    });
                 } catch (Exception e) {
-                    Log.e(RN_MODULE, e.getMessage());
+                    operation.reject(Helpers.getError(e));
                 }
             }
         });
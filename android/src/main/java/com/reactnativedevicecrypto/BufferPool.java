@@ -0,0 +1,75 @@
+package com.reactnativedevicecrypto;
+
+import androidx.annotation.Nullable;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/**
+ * Reusable byte arrays for plaintext, ciphertext and encoded data, so bursts of operations don't
+ * leave short-lived arrays behind for the GC.
+ *
+ * Buffers are bucketed by power of two sizes from 256 bytes to 64KB, larger requests are allocated
+ * and simply dropped on release. Every released buffer is zeroed first, secrets don't linger on the
+ * heap until the array happens to be collected.
+ */
+public class BufferPool {
+    private static final int MIN_SHIFT = 8;
+    private static final int MAX_SHIFT = 16;
+    private static final int BUFFERS_PER_SIZE = 4;
+
+    @SuppressWarnings("unchecked")
+    private static final ArrayDeque<byte[]>[] pools = new ArrayDeque[MAX_SHIFT - MIN_SHIFT + 1];
+
+    static {
+        for (int i = 0; i < pools.length; i++) {
+            pools[i] = new ArrayDeque<>(BUFFERS_PER_SIZE);
+        }
+    }
+
+    /**
+     * Returns a buffer of at least `size` bytes, its content is all zeros.
+     */
+    public static byte[] acquire(int size) {
+        int shift = shiftOf(size);
+        if (shift > MAX_SHIFT) {
+            return new byte[size];
+        }
+
+        ArrayDeque<byte[]> pool = pools[shift - MIN_SHIFT];
+        synchronized (pool) {
+            byte[] buffer = pool.pollFirst();
+            if (buffer != null) {
+                return buffer;
+            }
+        }
+        return new byte[1 << shift];
+    }
+
+    /**
+     * Zeroes the buffer and keeps it for the next caller. The caller must not use it afterwards.
+     */
+    public static void release(@Nullable byte[] buffer) {
+        if (buffer == null) {
+            return;
+        }
+        Arrays.fill(buffer, (byte) 0);
+
+        int shift = shiftOf(buffer.length);
+        if (shift > MAX_SHIFT || buffer.length != 1 << shift) {
+            return;
+        }
+        ArrayDeque<byte[]> pool = pools[shift - MIN_SHIFT];
+        synchronized (pool) {
+            if (pool.size() < BUFFERS_PER_SIZE) {
+                pool.addFirst(buffer);
+            }
+        }
+    }
+
+    private static int shiftOf(int size) {
+        if (size <= 1 << MIN_SHIFT) {
+            return MIN_SHIFT;
+        }
+        return 32 - Integer.numberOfLeadingZeros(size - 1);
+    }
+}
@@ -0,0 +1,180 @@
+package com.reactnativedevicecrypto;
+
+import androidx.annotation.NonNull;
+import static java.nio.charset.StandardCharsets.US_ASCII;
+
+/**
+ * UTF-8 and Base64 conversions that write into caller provided (pooled) buffers instead of
+ * allocating an intermediate array for each step. The only allocation left is the String handed
+ * over to JS.
+ */
+public class Codec {
+    // Standard alphabet with padding, same as Base64.NO_WRAP
+    public static final int BASE64 = 0;
+    // URL safe alphabet without padding, same as Base64.URL_SAFE | Base64.NO_WRAP | Base64.NO_PADDING
+    public static final int BASE64URL = 1;
+
+    private static final byte[] ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".getBytes(US_ASCII);
+    private static final byte[] URL_ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_".getBytes(US_ASCII);
+    private static final int[] DECODE = new int[128];
+
+    static {
+        java.util.Arrays.fill(DECODE, -1);
+        for (int i = 0; i < 64; i++) {
+            DECODE[ALPHABET[i]] = i;
+            DECODE[URL_ALPHABET[i]] = i;
+        }
+    }
+
+    // UTF-8
+    // ______________________________________________
+    public static int maxUtf8Length(@NonNull String text) {
+        return text.length() * 3;
+    }
+
+    /**
+     * Encodes like `String.getBytes(UTF_8)`, unpaired surrogates are replaced with '?'.
+     *
+     * @return Number of bytes written
+     */
+    public static int encodeUtf8(@NonNull String text, @NonNull byte[] out) {
+        int length = text.length();
+        int position = 0;
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                out[position++] = (byte) c;
+            } else if (c < 0x800) {
+                out[position++] = (byte) (0xc0 | c >> 6);
+                out[position++] = (byte) (0x80 | c & 0x3f);
+            } else if (Character.isSurrogate(c)) {
+                if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(text.charAt(i + 1))) {
+                    int codePoint = Character.toCodePoint(c, text.charAt(++i));
+                    out[position++] = (byte) (0xf0 | codePoint >> 18);
+                    out[position++] = (byte) (0x80 | codePoint >> 12 & 0x3f);
+                    out[position++] = (byte) (0x80 | codePoint >> 6 & 0x3f);
+                    out[position++] = (byte) (0x80 | codePoint & 0x3f);
+                } else {
+                    out[position++] = '?';
+                }
+            } else {
+                out[position++] = (byte) (0xe0 | c >> 12);
+                out[position++] = (byte) (0x80 | c >> 6 & 0x3f);
+                out[position++] = (byte) (0x80 | c & 0x3f);
+            }
+        }
+        return position;
+    }
+
+    // BASE64
+    // ______________________________________________
+    public static int encodedLength(int length, int variant) {
+        if (variant == BASE64URL) {
+            return (length * 4 + 2) / 3;
+        }
+        return (length + 2) / 3 * 4;
+    }
+
+    /**
+     * @return Number of bytes written
+     */
+    public static int encode(@NonNull byte[] in, int offset, int length, @NonNull byte[] out, int variant) {
+        byte[] alphabet = variant == BASE64URL ? URL_ALPHABET : ALPHABET;
+        int end = offset + length;
+        int position = 0;
+        int i = offset;
+        for (; i + 3 <= end; i += 3) {
+            int bits = (in[i] & 0xff) << 16 | (in[i + 1] & 0xff) << 8 | in[i + 2] & 0xff;
+            out[position++] = alphabet[bits >>> 18];
+            out[position++] = alphabet[bits >>> 12 & 0x3f];
+            out[position++] = alphabet[bits >>> 6 & 0x3f];
+            out[position++] = alphabet[bits & 0x3f];
+        }
+
+        int remaining = end - i;
+        if (remaining > 0) {
+            int bits = (in[i] & 0xff) << 16 | (remaining == 2 ? (in[i + 1] & 0xff) << 8 : 0);
+            out[position++] = alphabet[bits >>> 18];
+            out[position++] = alphabet[bits >>> 12 & 0x3f];
+            if (remaining == 2) {
+                out[position++] = alphabet[bits >>> 6 & 0x3f];
+            }
+            if (variant != BASE64URL) {
+                out[position++] = '=';
+                if (remaining == 1) {
+                    out[position++] = '=';
+                }
+            }
+        }
+        return position;
+    }
+
+    public static String encodeToString(@NonNull byte[] in, int offset, int length, int variant) {
+        byte[] out = BufferPool.acquire(encodedLength(length, variant));
+        try {
+            int count = encode(in, offset, length, out, variant);
+            return new String(out, 0, count, US_ASCII);
+        } finally {
+            BufferPool.release(out);
+        }
+    }
+
+    public static String encodeToString(@NonNull byte[] in, int variant) {
+        return encodeToString(in, 0, in.length, variant);
+    }
+
+    public static int maxDecodedLength(@NonNull CharSequence text) {
+        return text.length() / 4 * 3 + 3;
+    }
+
+    /**
+     * Decodes both alphabets, padding and line breaks are skipped.
+     *
+     * @return Number of bytes written
+     */
+    public static int decode(@NonNull CharSequence text, @NonNull byte[] out) {
+        int bits = 0;
+        int count = 0;
+        int position = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '=' || c == '\n' || c == '\r' || c == ' ' || c == '\t') {
+                continue;
+            }
+            int value = c < 128 ? DECODE[c] : -1;
+            if (value < 0) {
+                throw new IllegalArgumentException("Bad base64 character at ".concat(String.valueOf(i)));
+            }
+            bits = bits << 6 | value;
+            if (++count == 4) {
+                out[position++] = (byte) (bits >> 16);
+                out[position++] = (byte) (bits >> 8);
+                out[position++] = (byte) bits;
+                bits = 0;
+                count = 0;
+            }
+        }
+
+        if (count == 1) {
+            throw new IllegalArgumentException("Bad base64 length.");
+        } else if (count == 2) {
+            out[position++] = (byte) (bits >> 4);
+        } else if (count == 3) {
+            out[position++] = (byte) (bits >> 10);
+            out[position++] = (byte) (bits >> 2);
+        }
+        return position;
+    }
+
+    /**
+     * Decodes into an array of the exact length, for IVs and keys that outlive the call.
+     */
+    public static byte[] decode(@NonNull CharSequence text) {
+        byte[] buffer = BufferPool.acquire(maxDecodedLength(text));
+        try {
+            return java.util.Arrays.copyOf(buffer, decode(text, buffer));
+        } finally {
+            BufferPool.release(buffer);
+        }
+    }
+}
@@ -16,6 +16,15 @@ public class Constants {
     public static final String BIOMETRY_SUBTITLE = "Authentication required";
     public static final String BIOMETRY_DESCRIPTION = "";
 
+    // Events
+    public static final String EVENT_KEY_CHANGED = "DeviceCryptoKeyChanged";
+    public static final String EVENT_SECURITY_CHANGED = "DeviceCryptoSecurityChanged";
+    public static final String EVENT_JOBS_SETTLED = "DeviceCryptoJobsSettled";
+    public static final String KEY_CREATED = "CREATED";
+    public static final String KEY_DELETED = "DELETED";
+    public static final String KEY_INVALIDATED = "INVALIDATED";
+
     public static final String RN_MODULE = "RNDeviceCrypto";
     public static final String E_ERROR = "ERROR";
+    public static final String E_CANCELLED = "CANCELLED";
 }
@@ -0,0 +1,227 @@
+package com.reactnativedevicecrypto;
+
+import android.content.ContentProvider;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.ParcelFileDescriptor;
+import android.os.ProxyFileDescriptorCallback;
+import android.os.storage.StorageManager;
+import android.provider.OpenableColumns;
+import android.system.ErrnoException;
+import android.system.OsConstants;
+import android.util.Log;
+import android.webkit.MimeTypeMap;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.RequiresApi;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import static com.reactnativedevicecrypto.Constants.RN_MODULE;
+
+/**
+ * Serves the plaintext of files created by {@link EncryptedFile} to image loaders and media players
+ * of the app, without writing it to disk.
+ *
+ * content://{applicationId}.devicecrypto/decrypt?alias={alias}&path={path}&mimeType={mimeType}
+ *
+ * On API 26+ a proxy file descriptor is returned, reads at any offset (eg. video seeking) decrypt
+ * only the chunks they touch. Older versions stream the plaintext through a pipe.
+ */
+public class DecryptingContentProvider extends ContentProvider {
+    private static final String AUTHORITY_SUFFIX = ".devicecrypto";
+    private static final String PATH = "decrypt";
+    private static final String[] COLUMNS = {OpenableColumns.DISPLAY_NAME, OpenableColumns.SIZE};
+    private static Handler proxyHandler;
+
+    public static Uri getUri(@NonNull Context context, @NonNull String alias, @NonNull String path, @Nullable String mimeType) {
+        Uri.Builder builder = new Uri.Builder()
+                .scheme("content")
+                .authority(context.getPackageName().concat(AUTHORITY_SUFFIX))
+                .appendPath(PATH)
+                .appendQueryParameter("alias", alias)
+                .appendQueryParameter("path", path);
+        if (mimeType != null) {
+            builder.appendQueryParameter("mimeType", mimeType);
+        }
+        return builder.build();
+    }
+
+    @Override
+    public boolean onCreate() {
+        return true;
+    }
+
+    @Nullable
+    @Override
+    public Cursor query(@NonNull Uri uri, @Nullable String[] projection, @Nullable String selection, @Nullable String[] selectionArgs, @Nullable String sortOrder) {
+        String[] columns = projection != null ? projection : COLUMNS;
+        String path = uri.getQueryParameter("path");
+        if (path == null) {
+            return new MatrixCursor(columns, 0);
+        }
+
+        File file = toFile(path);
+        Long size = null;
+        try {
+            size = EncryptedFile.getPlaintextLength(file);
+        } catch (Exception e) {
+            Log.e(RN_MODULE, Helpers.getError(e));
+        }
+
+        // Same as FileProvider, unknown columns are left out instead of failing the query
+        String[] names = new String[columns.length];
+        Object[] values = new Object[columns.length];
+        int count = 0;
+        for (String column : columns) {
+            if (OpenableColumns.DISPLAY_NAME.equals(column)) {
+                names[count] = column;
+                values[count++] = file.getName();
+            } else if (OpenableColumns.SIZE.equals(column)) {
+                names[count] = column;
+                values[count++] = size;
+            }
+        }
+
+        MatrixCursor cursor = new MatrixCursor(Arrays.copyOf(names, count), 1);
+        cursor.addRow(Arrays.copyOf(values, count));
+        return cursor;
+    }
+
+    @Nullable
+    @Override
+    public String getType(@NonNull Uri uri) {
+        String mimeType = uri.getQueryParameter("mimeType");
+        if (mimeType != null) {
+            return mimeType;
+        }
+        String extension = MimeTypeMap.getFileExtensionFromUrl(uri.getQueryParameter("path"));
+        return extension != null ? MimeTypeMap.getSingleton().getMimeTypeFromExtension(extension) : null;
+    }
+
+    @Nullable
+    @Override
+    public ParcelFileDescriptor openFile(@NonNull Uri uri, @NonNull String mode) throws FileNotFoundException {
+        if (!"r".equals(mode)) {
+            throw new FileNotFoundException("Encrypted files can only be opened for reading.");
+        }
+
+        String alias = uri.getQueryParameter("alias");
+        if (alias == null) {
+            throw new FileNotFoundException("Alias is required.");
+        }
+
+        EncryptedFile file;
+        try {
+            file = EncryptedFile.open(alias, getFile(uri));
+        } catch (Exception e) {
+            throw new FileNotFoundException(Helpers.getError(e));
+        }
+
+        try {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+                return openProxy(file);
+            }
+            return openPipeHelper(uri, getType(uri), null, file, this::writePipe);
+        } catch (IOException e) {
+            closeQuietly(file);
+            throw new FileNotFoundException(Helpers.getError(e));
+        }
+    }
+
+    @Nullable
+    @Override
+    public Uri insert(@NonNull Uri uri, @Nullable ContentValues values) {
+        throw new UnsupportedOperationException("Read only provider.");
+    }
+
+    @Override
+    public int delete(@NonNull Uri uri, @Nullable String selection, @Nullable String[] selectionArgs) {
+        throw new UnsupportedOperationException("Read only provider.");
+    }
+
+    @Override
+    public int update(@NonNull Uri uri, @Nullable ContentValues values, @Nullable String selection, @Nullable String[] selectionArgs) {
+        throw new UnsupportedOperationException("Read only provider.");
+    }
+
+    @RequiresApi(api = Build.VERSION_CODES.O)
+    private ParcelFileDescriptor openProxy(@NonNull EncryptedFile file) throws IOException {
+        StorageManager storageManager = getContext().getSystemService(StorageManager.class);
+        return storageManager.openProxyFileDescriptor(ParcelFileDescriptor.MODE_READ_ONLY, new ProxyFileDescriptorCallback() {
+            @Override
+            public long onGetSize() {
+                return file.length();
+            }
+
+            @Override
+            public int onRead(long offset, int size, byte[] data) throws ErrnoException {
+                try {
+                    int count = file.read(offset, data, 0, size);
+                    return Math.max(count, 0);
+                } catch (IOException e) {
+                    Log.e(RN_MODULE, Helpers.getError(e));
+                    throw new ErrnoException("onRead", OsConstants.EIO, e);
+                }
+            }
+
+            @Override
+            public void onRelease() {
+                closeQuietly(file);
+            }
+        }, getProxyHandler());
+    }
+
+    private void writePipe(@NonNull ParcelFileDescriptor output, @NonNull Uri uri, @Nullable String mimeType, @Nullable Bundle opts, @NonNull EncryptedFile file) {
+        byte[] buffer = BufferPool.acquire(16 * 1024);
+        try (InputStream in = new DecryptingInputStream(file); OutputStream out = new ParcelFileDescriptor.AutoCloseOutputStream(output)) {
+            int count;
+            while ((count = in.read(buffer, 0, buffer.length)) > 0) {
+                out.write(buffer, 0, count);
+            }
+        } catch (IOException e) {
+            // The reader may close the pipe early, eg. an image decoder that has enough bytes
+            Log.w(RN_MODULE, Helpers.getError(e));
+        } finally {
+            BufferPool.release(buffer);
+        }
+    }
+
+    private static synchronized Handler getProxyHandler() {
+        if (proxyHandler == null) {
+            HandlerThread thread = new HandlerThread("DeviceCryptoProxy");
+            thread.start();
+            proxyHandler = new Handler(thread.getLooper());
+        }
+        return proxyHandler;
+    }
+
+    private static File getFile(@NonNull Uri uri) {
+        String path = uri.getQueryParameter("path");
+        if (path == null) {
+            throw new IllegalArgumentException("Path is required.");
+        }
+        return toFile(path);
+    }
+
+    private static File toFile(@NonNull String path) {
+        return new File(path.startsWith("file://") ? path.substring(7) : path);
+    }
+
+    private static void closeQuietly(@NonNull EncryptedFile file) {
+        try {
+            file.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
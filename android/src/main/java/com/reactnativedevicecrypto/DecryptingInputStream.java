@@ -0,0 +1,75 @@
+package com.reactnativedevicecrypto;
+
+import androidx.annotation.NonNull;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Streams the plaintext of an {@link EncryptedFile}, decrypting chunk by chunk as it's read.
+ * Skipping only moves the position, so seeking to a range doesn't decrypt the bytes before it.
+ */
+public class DecryptingInputStream extends InputStream {
+    private final EncryptedFile file;
+    private final byte[] single = new byte[1];
+    private long position;
+    private long mark;
+
+    public DecryptingInputStream(@NonNull EncryptedFile file) {
+        this(file, 0);
+    }
+
+    public DecryptingInputStream(@NonNull EncryptedFile file, long start) {
+        this.file = file;
+        this.position = Math.max(0, Math.min(start, file.length()));
+        this.mark = this.position;
+    }
+
+    @Override
+    public int read() throws IOException {
+        return read(single, 0, 1) == 1 ? single[0] & 0xff : -1;
+    }
+
+    @Override
+    public int read(@NonNull byte[] buffer, int offset, int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+        int count = file.read(position, buffer, offset, length);
+        if (count > 0) {
+            position += count;
+        }
+        return count;
+    }
+
+    @Override
+    public long skip(long n) {
+        long skipped = Math.max(0, Math.min(n, file.length() - position));
+        position += skipped;
+        return skipped;
+    }
+
+    @Override
+    public int available() {
+        return (int) Math.min(Integer.MAX_VALUE, file.length() - position);
+    }
+
+    @Override
+    public boolean markSupported() {
+        return true;
+    }
+
+    @Override
+    public synchronized void mark(int readLimit) {
+        mark = position;
+    }
+
+    @Override
+    public synchronized void reset() {
+        position = mark;
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+}
@@ -9,6 +9,7 @@ import androidx.biometric.BiometricManager;
 import static android.content.pm.PackageManager.PERMISSION_GRANTED;
 import static androidx.biometric.BiometricManager.Authenticators.*;
 import static androidx.biometric.BiometricManager.BIOMETRIC_SUCCESS;
+import static com.reactnativedevicecrypto.Constants.*;
 import com.facebook.react.bridge.ReactApplicationContext;
 import com.facebook.react.bridge.ReadableMap;
 
@@ -47,6 +48,34 @@ public class Device {
         return context.checkSelfPermission(Manifest.permission.USE_BIOMETRIC) == PERMISSION_GRANTED;
     }
 
+    public static String getSecurityLevel(@NonNull final ReactApplicationContext context) {
+        // Class 2 or Class 3 biometry
+        if (hasEnrolledBiometry(context)) {
+            return BIOMETRY;
+        }
+
+        // Pin, password or pattern protected
+        if (hasPinOrPassword(context)) {
+            return PIN_OR_PATTERN;
+        }
+        return NOT_PROTECTED;
+    }
+
+    public static String getBiometryType(@NonNull final ReactApplicationContext context) {
+        if (hasIrisAuth(context)) {
+            return IRIS;
+        }
+
+        if (hasFaceAuth(context)) {
+            return FACE;
+        }
+
+        if (hasFingerprint(context)) {
+            return TOUCH;
+        }
+        return NONE;
+    }
+
     public static boolean isCompatible(@NonNull final ReactApplicationContext context, @NonNull ReadableMap options) {
       int accessLevel = options.hasKey("accessLevel") ? options.getInt("accessLevel") : Helpers.AccessLevel.ALWAYS;
       switch (accessLevel) {
@@ -1,7 +1,13 @@
 package com.reactnativedevicecrypto;
 
+import android.app.Activity;
+import android.os.Build;
+import android.security.keystore.KeyPermanentlyInvalidatedException;
+import android.security.keystore.UserNotAuthenticatedException;
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
+import com.facebook.react.bridge.LifecycleEventListener;
 import com.facebook.react.bridge.Promise;
 import com.facebook.react.bridge.ReactApplicationContext;
 import com.facebook.react.bridge.ReactContextBaseJavaModule;
@@ -10,21 +16,48 @@ import com.facebook.react.module.annotations.ReactModule;
 
 import java.security.KeyStore;
 import java.security.PublicKey;
+import java.io.File;
 import java.security.Signature;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import javax.crypto.Cipher;
 import javax.crypto.SecretKey;
 import androidx.biometric.BiometricPrompt;
+import com.facebook.react.bridge.ReadableArray;
 import com.facebook.react.bridge.ReadableMap;
+import com.facebook.react.bridge.WritableArray;
 import com.facebook.react.bridge.WritableMap;
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.modules.core.DeviceEventManagerModule;
 import static com.reactnativedevicecrypto.Constants.*;
 
 @SuppressWarnings({"unused", "SameParameterValue"})
 @ReactModule(name = DeviceCryptoModule.NAME)
-public class DeviceCryptoModule extends ReactContextBaseJavaModule {
+public class DeviceCryptoModule extends ReactContextBaseJavaModule implements LifecycleEventListener {
     public static final String NAME = "DeviceCrypto";
+    private final InFlightOperations operations = new InFlightOperations();
+    // File encryption, key probes and the placement benchmark can take seconds, keep them off the native modules thread
+    static final ThreadPoolExecutor backgroundExecutor = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
+    static {
+        backgroundExecutor.allowCoreThreadTimeOut(true);
+    }
+    private String lastSecurityState;
+    // alias -> key type of the keys JS has seen and may have cached, probed for invalidation on resume
+    private final Map<String, Integer> watchedKeys = new ConcurrentHashMap<>();
+    private final JobQueue jobQueue;
+    private final JobQueue.Listener jobListener = this::onJobsSettled;
 
     public DeviceCryptoModule(ReactApplicationContext reactContext) {
         super(reactContext);
+        jobQueue = JobQueue.getInstance(reactContext);
+        jobQueue.addListener(jobListener);
+        // Last, a resume can be delivered right away and reads every field
+        reactContext.addLifecycleEventListener(this);
     }
 
     @Override
@@ -34,6 +67,145 @@ public class DeviceCryptoModule extends ReactContextBaseJavaModule {
     }
 
 
+  // LIFECYCLE
+  // ______________________________________________
+  @Override
+  public void onHostResume() {
+    // Biometric enrollment and lock screen can only change while the app is in background
+    try {
+      ReactApplicationContext context = getReactApplicationContext();
+      String securityLevel = Device.getSecurityLevel(context);
+      String biometryType = Device.getBiometryType(context);
+      String securityState = securityLevel.concat("|").concat(biometryType);
+      if (lastSecurityState != null && !lastSecurityState.equals(securityState)) {
+        WritableMap params = Arguments.createMap();
+        params.putString("securityLevel", securityLevel);
+        params.putString("biometryType", biometryType);
+        params.putBoolean("isBiometryEnrolled", BIOMETRY.equals(securityLevel));
+        sendEvent(EVENT_SECURITY_CHANGED, params);
+      }
+      lastSecurityState = securityState;
+    } catch (Exception e) {
+      Helpers.getError(e);
+    }
+
+    // Back from the credential screen of a prompt rather than from background, there's nothing new to check
+    if (operations.hasPrompts()) {
+      return;
+    }
+
+    // Enrolling another fingerprint or face invalidates keys without changing the state above
+    if (!watchedKeys.isEmpty()) {
+      backgroundExecutor.execute(this::probeWatchedKeys);
+    }
+
+    // Unlocking the device may have opened the validity window of the keys with queued jobs
+    if (jobQueue.hasJournal()) {
+      jobQueue.execute(() -> {
+        try {
+          jobQueue.drain();
+        } catch (Exception e) {
+          Helpers.getError(e);
+        }
+      });
+    }
+  }
+
+  @Override
+  public void onHostPause() {
+    // The prompt cannot outlive its activity, callbacks would arrive for a detached fragment. The credential
+    // screen of the prompt pauses the activity too, so only a finishing activity takes its prompts along.
+    Activity activity = getCurrentActivity();
+    if (activity != null && activity.isFinishing()) {
+      operations.cancelPrompts();
+    }
+  }
+
+  @Override
+  public void onHostDestroy() {
+    operations.cancelAll(true);
+  }
+
+  // Bridge teardown (reload, fast refresh). Named invalidate on RN 0.65+, onCatalystInstanceDestroy before.
+  public void invalidate() {
+    teardown();
+  }
+
+  public void onCatalystInstanceDestroy() {
+    teardown();
+  }
+
+  // EVENTS
+  // ______________________________________________
+  private void sendEvent(@NonNull String eventName, @Nullable WritableMap params) {
+    ReactApplicationContext context = getReactApplicationContext();
+    if (context.hasActiveCatalystInstance()) {
+      context.getJSModule(DeviceEventManagerModule.RCTDeviceEventEmitter.class).emit(eventName, params);
+    }
+  }
+
+  private void sendKeyChanged(@NonNull String alias, @NonNull String change) {
+    WritableMap params = Arguments.createMap();
+    params.putString("alias", alias);
+    params.putString("change", change);
+    sendEvent(EVENT_KEY_CHANGED, params);
+  }
+
+  // Reports where the key ended up, StrongBox may have fallen back to TEE
+  private void sendKeyCreated(@NonNull String alias, @Helpers.KeyType.Types int keyType) {
+    WritableMap params = Arguments.createMap();
+    params.putString("alias", alias);
+    params.putString("change", KEY_CREATED);
+    try {
+      params.putString("securityLevel", KeyPlacement.getSecurityLevel(alias, keyType));
+    } catch (Exception e) {
+      Helpers.getError(e);
+    }
+    sendEvent(EVENT_KEY_CHANGED, params);
+  }
+
+  // Reports keys that became unusable after a biometric enrollment or lock screen change
+  private void onKeyInvalidated(@NonNull String alias) {
+    watchedKeys.remove(alias);
+    sendKeyChanged(alias, KEY_INVALIDATED);
+  }
+
+  private void watchKey(@NonNull String alias, @Helpers.KeyType.Types int keyType) {
+    watchedKeys.put(alias, keyType);
+  }
+
+  private void probeWatchedKeys() {
+    for (Map.Entry<String, Integer> key : watchedKeys.entrySet()) {
+      try {
+        if (Helpers.isKeyInvalidated(key.getKey(), key.getValue())) {
+          onKeyInvalidated(key.getKey());
+        }
+      } catch (Exception e) {
+        Helpers.getError(e);
+      }
+    }
+  }
+
+  private void onJobsSettled(@NonNull List<JobQueue.Job> jobs) {
+    WritableArray jsArray = Arguments.createArray();
+    for (JobQueue.Job job : jobs) {
+      WritableMap jsObject = Arguments.createMap();
+      JobQueue.putJob(jsObject, job);
+      jsArray.pushMap(jsObject);
+    }
+    WritableMap params = Arguments.createMap();
+    params.putArray("jobs", jsArray);
+    sendEvent(EVENT_JOBS_SETTLED, params);
+  }
+
+  private void teardown() {
+    getReactApplicationContext().removeLifecycleEventListener(this);
+    jobQueue.removeListener(jobListener);
+    // Promises belong to the destroyed JS context, there is no one left to notify
+    operations.cancelAll(false);
+  }
+
+
   // REACT METHODS
   // ______________________________________________
   @ReactMethod
@@ -45,20 +217,26 @@ public class DeviceCryptoModule extends ReactContextBaseJavaModule {
       if (!Device.isCompatible(context, options)) {
         throw new Exception("The device cannot meet requirements. (Eg: not pin/pass protected or no biometry has been enrolled.");
       }
+      boolean existed = Helpers.isKeyExists(alias, keyType);
 
       if (keyType == Helpers.KeyType.ASYMMETRIC) {
-        PublicKey publicKey = Helpers.getOrCreateAsymmetricKey(alias, options);
+        TokenSigner.invalidate(alias);
+        PublicKey publicKey = Helpers.getOrCreateAsymmetricKey(alias, options, context);
         if (publicKey == null) {
           throw new Exception("Public key is null.");
         }
         promise.resolve(Helpers.getPublicKeyPEMFormatted(alias));
       } else {
-        SecretKey secretKey = Helpers.getOrCreateSymmetricKey(alias, options);
+        SecretKey secretKey = Helpers.getOrCreateSymmetricKey(alias, options, context);
         if (secretKey == null) {
           throw new Exception("Secret key is null.");
         }
         promise.resolve(true);
       }
+      watchKey(alias, keyType);
+      if (!existed) {
+        sendKeyCreated(alias, keyType);
+      }
     } catch (Exception e) {
       promise.reject(E_ERROR, Helpers.getError(e));
     }
@@ -69,84 +247,292 @@ public class DeviceCryptoModule extends ReactContextBaseJavaModule {
     try {
       KeyStore keyStore = Helpers.getKeyStore();
       keyStore.deleteEntry(alias);
+      TokenSigner.invalidate(alias);
+      watchedKeys.remove(alias);
       promise.resolve(true);
+      sendKeyChanged(alias, KEY_DELETED);
     } catch (Exception e) {
       promise.reject(E_ERROR, Helpers.getError(e));
     }
   }
 
   @ReactMethod
-  public void sign(@NonNull String alias, String plainText, ReadableMap options, @NonNull final Promise promise) {
+  public void createWrappingKey(@NonNull String alias, @NonNull final Promise promise) {
     try {
-      ReactApplicationContext context = getReactApplicationContext();
-      Signature signature = Helpers.initializeSignature(alias);
-
-      // Key usage doesn't require biometric authentication (unrestricted)
-      if (Helpers.doNonAuthenticatedCryptography(alias, Helpers.KeyType.ASYMMETRIC, context)) {
-        String signatureOfTheText = Helpers.sign(plainText, signature);
-        if (signatureOfTheText.isEmpty()) {
-          throw new Exception("Couldn't sign the text");
-        }
-        promise.resolve(signatureOfTheText);
-        return;
+      if (Build.VERSION.SDK_INT < Build.VERSION_CODES.P) {
+        throw new Exception("Wrapped key import requires Android 9 (API 28) or higher.");
       }
+      KeyImporter.getOrCreateWrappingKey(alias);
+      promise.resolve(Helpers.getPublicKeyPEMFormatted(alias));
+    } catch (Exception e) {
+      promise.reject(E_ERROR, Helpers.getError(e));
+    }
+  }
 
-      // Restricted key requires biometric authentication
-      BiometricPrompt.CryptoObject cryptoObject = new BiometricPrompt.CryptoObject(signature);
-      Authenticator.authenticate(Authenticator.Cryptography.SIGN, plainText, options, cryptoObject, getCurrentActivity(), promise);
+  @ReactMethod
+  public void importWrappedKeys(@NonNull String wrappingAlias, @NonNull ReadableArray entries, @NonNull ReadableMap options, @NonNull final Promise promise) {
+    try {
+      if (Build.VERSION.SDK_INT < Build.VERSION_CODES.P) {
+        throw new Exception("Wrapped key import requires Android 9 (API 28) or higher.");
+      }
+      KeyImporter.importWrappedKeys(wrappingAlias, entries, isOverwrite(options), results -> resolveKeysImported(results, promise));
     } catch (Exception e) {
       promise.reject(E_ERROR, Helpers.getError(e));
     }
   }
 
   @ReactMethod
-  public void encrypt(@NonNull String alias, String plainText, ReadableMap options, @NonNull final Promise promise) {
+  public void importKeys(@NonNull ReadableArray entries, @NonNull ReadableMap options, @NonNull final Promise promise) {
     try {
-      ReactApplicationContext context = getReactApplicationContext();
-      Cipher cipher = Helpers.initializeEncrypter(alias);
+      KeyImporter.importKeys(entries, isOverwrite(options), results -> resolveKeysImported(results, promise));
+    } catch (Exception e) {
+      promise.reject(E_ERROR, Helpers.getError(e));
+    }
+  }
 
-      // Key usage doesn't require biometric authentication (unrestricted)
-      if (Helpers.doNonAuthenticatedCryptography(alias, Helpers.KeyType.SYMMETRIC, context)) {
-        WritableMap jsObject = Helpers.encrypt(plainText, cipher);
-        promise.resolve(jsObject);
-        return;
-      }
+  private static boolean isOverwrite(@NonNull ReadableMap options) {
+    return options.hasKey("overwrite") && options.getBoolean("overwrite");
+  }
 
-      // Restricted key requires biometric authentication
-      BiometricPrompt.CryptoObject cryptoObject = new BiometricPrompt.CryptoObject(cipher);
-      Authenticator.authenticate(Authenticator.Cryptography.ENCRYPT, plainText, options, cryptoObject, getCurrentActivity(), promise);
+  // Runs on an import worker, nothing else would settle the promise if building the results throws
+  private void resolveKeysImported(@NonNull List<KeyImporter.Result> results, @NonNull Promise promise) {
+    try {
+      promise.resolve(onKeysImported(results));
     } catch (Exception e) {
       promise.reject(E_ERROR, Helpers.getError(e));
     }
   }
 
+  private WritableArray onKeysImported(@NonNull List<KeyImporter.Result> results) {
+    WritableArray jsArray = Arguments.createArray();
+    for (KeyImporter.Result result : results) {
+      WritableMap jsObject = Arguments.createMap();
+      jsObject.putString("alias", result.alias);
+      jsObject.putBoolean("success", result.isSuccess());
+      if (result.isSuccess()) {
+        TokenSigner.invalidate(result.alias);
+        // An overwritten key may have been watched with another type
+        watchedKeys.remove(result.alias);
+        if (result.authenticationRequired) {
+          watchKey(result.alias, result.keyType);
+        }
+        sendKeyChanged(result.alias, KEY_CREATED);
+      } else {
+        jsObject.putString("error", result.error);
+      }
+      jsArray.pushMap(jsObject);
+    }
+    return jsArray;
+  }
+
+  @ReactMethod
+  public void sign(@NonNull String alias, String plainText, ReadableMap options, @NonNull final Promise promise) {
+    InFlightOperations.Entry operation = operations.register(options, promise);
+    watchKey(alias, Helpers.KeyType.ASYMMETRIC);
+    OperationSlots.execute(operation, cryptography(Authenticator.Cryptography.SIGN, alias, Helpers.KeyType.ASYMMETRIC, () -> plainText, options, operation,
+        () -> Helpers.initializeSignature(alias)));
+  }
+
+  @ReactMethod
+  public void signJws(@NonNull String alias, ReadableMap header, @NonNull ReadableMap claims, ReadableMap options, @NonNull final Promise promise) {
+    InFlightOperations.Entry operation = operations.register(options, promise);
+    watchKey(alias, Helpers.KeyType.ASYMMETRIC);
+    OperationSlots.execute(operation, cryptography(Authenticator.Cryptography.SIGN_JWS, alias, Helpers.KeyType.ASYMMETRIC, () -> TokenSigner.getJwsSigningInput(alias, header, claims), options, operation,
+        () -> Helpers.initializeSignature(alias)));
+  }
+
+  @ReactMethod
+  public void signCose(@NonNull String alias, @NonNull ReadableMap claims, ReadableMap options, @NonNull final Promise promise) {
+    InFlightOperations.Entry operation = operations.register(options, promise);
+    watchKey(alias, Helpers.KeyType.ASYMMETRIC);
+    OperationSlots.execute(operation, cryptography(Authenticator.Cryptography.SIGN_COSE, alias, Helpers.KeyType.ASYMMETRIC, () -> TokenSigner.getCosePayload(claims), options, operation,
+        () -> Helpers.initializeSignature(alias)));
+  }
+
+  @ReactMethod
+  public void encrypt(@NonNull String alias, String plainText, ReadableMap options, @NonNull final Promise promise) {
+    InFlightOperations.Entry operation = operations.register(options, promise);
+    watchKey(alias, Helpers.KeyType.SYMMETRIC);
+    OperationSlots.execute(operation, cryptography(Authenticator.Cryptography.ENCRYPT, alias, Helpers.KeyType.SYMMETRIC, () -> plainText, options, operation,
+        () -> Helpers.initializeEncrypter(alias)));
+  }
+
   @ReactMethod
   public void decrypt(@NonNull String alias, String plainText, String ivDecoded, ReadableMap options, @NonNull final Promise promise) {
+    InFlightOperations.Entry operation = operations.register(options, promise);
+    watchKey(alias, Helpers.KeyType.SYMMETRIC);
+    OperationSlots.execute(operation, cryptography(Authenticator.Cryptography.DECRYPT, alias, Helpers.KeyType.SYMMETRIC, () -> plainText, options, operation,
+        () -> Helpers.initializeDecrypter(alias, ivDecoded)));
+  }
+
+  private OperationSlots.Operation cryptography(@Authenticator.Cryptography.Types int cryptographyType, @NonNull String alias, @Helpers.KeyType.Types int keyType,
+                                                @NonNull Callable<Object> input, ReadableMap options, @NonNull InFlightOperations.Entry operation, @NonNull Callable<Object> engine) {
+    Runnable onKeyInvalidated = () -> onKeyInvalidated(alias);
+    return runCryptography(cryptographyType, operation, input, engine,
+        () -> Helpers.doNonAuthenticatedCryptography(alias, keyType, getReactApplicationContext()),
+        (data, cryptoObject, cryptography) -> {
+          if (cryptoObject == null) {
+            Authenticator.authenticateForKey(options, getCurrentActivity(), operation, cryptography, onKeyInvalidated);
+          } else {
+            Authenticator.authenticate(cryptographyType, data, options, cryptoObject, getCurrentActivity(), operation, onKeyInvalidated);
+          }
+        }, onKeyInvalidated);
+  }
+
+  interface Prompt {
+    /**
+     * Shows the prompt for the initialized `cryptoObject`, or when it's null for a time bound key
+     * which `cryptography` initializes and uses once the user authenticated.
+     */
+    void authenticate(@NonNull Object input, @Nullable BiometricPrompt.CryptoObject cryptoObject, @Nullable Authenticator.Deferred cryptography);
+  }
+
+  /**
+   * Body of sign, signJws, signCose, encrypt and decrypt, runs with the keystore slot of the operation.
+   * The stress harness runs it too, with its own keystore, access check and prompt.
+   */
+  static OperationSlots.Operation runCryptography(@Authenticator.Cryptography.Types int cryptographyType, @NonNull InFlightOperations.Entry operation,
+                                                  @NonNull Callable<Object> input, @NonNull Callable<Object> engine, @NonNull Callable<Boolean> unrestricted,
+                                                  @NonNull Prompt prompt, @NonNull Runnable onKeyInvalidated) {
+    return slot -> {
+      try {
+        Object data = input.call();
+        Object initialized;
+        try {
+          initialized = slot.hold(engine.call());
+        } catch (UserNotAuthenticatedException e) {
+          // Time bound key outside of its validity window, it's initialized once the prompt has opened the window
+          prompt.authenticate(data, null, () -> Authenticator.finish(cryptographyType, data, slot.hold(engine.call())));
+          return;
+        }
+
+        // Key usage doesn't require biometric authentication (unrestricted)
+        if (unrestricted.call()) {
+          operation.resolve(Authenticator.finish(cryptographyType, data, initialized));
+          return;
+        }
+
+        // Restricted key requires biometric authentication
+        BiometricPrompt.CryptoObject cryptoObject = initialized instanceof Signature
+            ? new BiometricPrompt.CryptoObject((Signature) initialized)
+            : new BiometricPrompt.CryptoObject((Cipher) initialized);
+        prompt.authenticate(data, cryptoObject, null);
+      } catch (KeyPermanentlyInvalidatedException e) {
+        onKeyInvalidated.run();
+        throw e;
+      }
+    };
+  }
+
+  // DEFERRED JOBS
+  // ______________________________________________
+  @ReactMethod
+  public void enqueueJobs(@NonNull ReadableArray jobs, @NonNull final Promise promise) {
+    jobQueue.execute(() -> {
+      try {
+        WritableArray jsArray = Arguments.createArray();
+        for (String id : jobQueue.enqueue(jobs)) {
+          jsArray.pushString(id);
+        }
+        promise.resolve(jsArray);
+      } catch (Exception e) {
+        promise.reject(E_ERROR, Helpers.getError(e));
+      }
+    });
+  }
+
+  @ReactMethod
+  public void drainJobs(@NonNull final Promise promise) {
+    jobQueue.execute(() -> {
+      try {
+        JobQueue.DrainResult result = jobQueue.drain();
+        WritableMap jsObject = Arguments.createMap();
+        jsObject.putInt("settled", result.settled);
+        jsObject.putInt("pending", result.pending);
+        jsObject.putBoolean("authenticationRequired", result.authenticationRequired);
+        promise.resolve(jsObject);
+      } catch (Exception e) {
+        promise.reject(E_ERROR, Helpers.getError(e));
+      }
+    });
+  }
+
+  @ReactMethod
+  public void getSettledJobs(@NonNull final Promise promise) {
+    jobQueue.execute(() -> {
+      try {
+        WritableArray jsArray = Arguments.createArray();
+        for (JobQueue.Job job : jobQueue.getSettled()) {
+          WritableMap jsObject = Arguments.createMap();
+          JobQueue.putJob(jsObject, job);
+          jsArray.pushMap(jsObject);
+        }
+        promise.resolve(jsArray);
+      } catch (Exception e) {
+        promise.reject(E_ERROR, Helpers.getError(e));
+      }
+    });
+  }
+
+  @ReactMethod
+  public void acknowledgeJobs(@NonNull ReadableArray ids, @NonNull final Promise promise) {
+    jobQueue.execute(() -> {
+      try {
+        promise.resolve(jobQueue.acknowledge(ids));
+      } catch (Exception e) {
+        promise.reject(E_ERROR, Helpers.getError(e));
+      }
+    });
+  }
+
+  @ReactMethod
+  public void authenticateForJobs(ReadableMap options, final Promise promise) {
+    InFlightOperations.Entry operation = operations.register(options, promise);
     try {
-      ReactApplicationContext context = getReactApplicationContext();
-      Cipher cipher = Helpers.initializeDecrypter(alias, ivDecoded);
+      Authenticator.authenticateForKeys(options, getCurrentActivity(), operation);
+    } catch (Exception e) {
+      operation.reject(Helpers.getError(e));
+    }
+  }
 
-      // Key usage doesn't require biometric authentication (unrestricted)
-      if (Helpers.doNonAuthenticatedCryptography(alias, Helpers.KeyType.SYMMETRIC, context)) {
-        promise.resolve(Helpers.decrypt(plainText, cipher));
-        return;
+  // ENCRYPTED FILES
+  // ______________________________________________
+  @ReactMethod
+  public void encryptFile(@NonNull String alias, @NonNull String inputPath, @NonNull String outputPath, @NonNull final Promise promise) {
+    backgroundExecutor.execute(() -> {
+      try {
+        EncryptedFile.encrypt(alias, toFile(inputPath), toFile(outputPath));
+        promise.resolve(true);
+      } catch (Exception e) {
+        promise.reject(E_ERROR, Helpers.getError(e));
       }
+    });
+  }
 
-      // Restricted key requires biometric authentication
-      BiometricPrompt.CryptoObject cryptoObject = new BiometricPrompt.CryptoObject(cipher);
-      Authenticator.authenticate(Authenticator.Cryptography.DECRYPT, plainText, options, cryptoObject, getCurrentActivity(), promise);
+  @ReactMethod
+  public void getDecryptingUri(@NonNull String alias, @NonNull String path, @Nullable String mimeType, @NonNull final Promise promise) {
+    try {
+      promise.resolve(DecryptingContentProvider.getUri(getReactApplicationContext(), alias, toFile(path).getAbsolutePath(), mimeType).toString());
     } catch (Exception e) {
       promise.reject(E_ERROR, Helpers.getError(e));
     }
   }
 
+  private static File toFile(@NonNull String path) {
+    return new File(path.startsWith("file://") ? path.substring(7) : path);
+  }
+
 
   // HELPERS
   // ______________________________________________
   @ReactMethod
   public void getPublicKey(@NonNull String alias, @NonNull final Promise promise) {
     try {
-      promise.resolve(Helpers.getPublicKeyPEMFormatted(alias));
+      String publicKey = Helpers.getPublicKeyPEMFormatted(alias);
+      if (publicKey != null) {
+        watchKey(alias, Helpers.KeyType.ASYMMETRIC);
+      }
+      promise.resolve(publicKey);
     } catch (Exception e) {
       promise.reject(E_ERROR, Helpers.getError(e));
     }
@@ -155,12 +541,56 @@ public class DeviceCryptoModule extends ReactContextBaseJavaModule {
   @ReactMethod
   public void isKeyExists(@NonNull String alias, @Helpers.KeyType.Types int keyType, @NonNull final Promise promise) {
     try {
-      promise.resolve(Helpers.isKeyExists(alias, keyType));
+      boolean exists = Helpers.isKeyExists(alias, keyType);
+      if (exists) {
+        watchKey(alias, keyType);
+      }
+      promise.resolve(exists);
+    } catch (Exception e) {
+      promise.reject(E_ERROR, Helpers.getError(e));
+    }
+  }
+
+  @ReactMethod
+  public void getKeySecurityLevel(@NonNull String alias, @Helpers.KeyType.Types int keyType, @NonNull final Promise promise) {
+    try {
+      if (!Helpers.isKeyExists(alias, keyType)) {
+        throw new Exception(alias.concat(" is not exists in KeyStore"));
+      }
+      promise.resolve(KeyPlacement.getSecurityLevel(alias, keyType));
     } catch (Exception e) {
       promise.reject(E_ERROR, Helpers.getError(e));
     }
   }
 
+  @ReactMethod
+  public void getKeyPlacementProfile(@NonNull final Promise promise) {
+    // Measures both backends unless it has been done on this system image, keep it off the native modules thread
+    backgroundExecutor.execute(() -> {
+      try {
+        KeyPlacement.Profile profile = KeyPlacement.getProfile(getReactApplicationContext());
+        WritableMap jsObject = Arguments.createMap();
+        jsObject.putBoolean("isStrongBoxAvailable", profile.isStrongBoxAvailable());
+        jsObject.putMap("trustedEnvironment", toLatencies(profile.teeGenerateKeyPair, profile.teeGenerateSecretKey, profile.teeSign, profile.teeEncrypt));
+        if (profile.isStrongBoxAvailable()) {
+          jsObject.putMap("strongBox", toLatencies(profile.strongBoxGenerateKeyPair, profile.strongBoxGenerateSecretKey, profile.strongBoxSign, profile.strongBoxEncrypt));
+        }
+        promise.resolve(jsObject);
+      } catch (Exception e) {
+        promise.reject(E_ERROR, Helpers.getError(e));
+      }
+    });
+  }
+
+  private static WritableMap toLatencies(long generateKeyPair, long generateSecretKey, long sign, long encrypt) {
+    WritableMap jsObject = Arguments.createMap();
+    jsObject.putDouble("generateKeyPair", generateKeyPair / 1000.0);
+    jsObject.putDouble("generateSecretKey", generateSecretKey / 1000.0);
+    jsObject.putDouble("sign", sign / 1000.0);
+    jsObject.putDouble("encrypt", encrypt / 1000.0);
+    return jsObject;
+  }
+
   @ReactMethod
   public void isBiometryEnrolled(@NonNull final Promise promise) {
     try {
@@ -173,18 +603,7 @@ public class DeviceCryptoModule extends ReactContextBaseJavaModule {
   @ReactMethod
   public void deviceSecurityLevel(@NonNull final Promise promise) {
     try {
-      // Class 2 or Class 3 biometry
-      if (Device.hasEnrolledBiometry(getReactApplicationContext())) {
-        promise.resolve(BIOMETRY);
-        return;
-      }
-
-      // Pin, password or pattern protected
-      if (Device.hasPinOrPassword(getReactApplicationContext())) {
-        promise.resolve(PIN_OR_PATTERN);
-        return;
-      }
-      promise.resolve(NOT_PROTECTED);
+      promise.resolve(Device.getSecurityLevel(getReactApplicationContext()));
     } catch (Exception e) {
       promise.reject(E_ERROR, Helpers.getError(e));
     }
@@ -192,23 +611,8 @@ public class DeviceCryptoModule extends ReactContextBaseJavaModule {
 
   @ReactMethod
   public void getBiometryType(@NonNull final Promise promise) {
-    try{
-      if (Device.hasIrisAuth(getReactApplicationContext())) {
-        promise.resolve(IRIS);
-        return;
-      }
-
-      if (Device.hasFaceAuth(getReactApplicationContext())) {
-        promise.resolve(FACE);
-        return;
-      }
-
-      if (Device.hasFingerprint(getReactApplicationContext())) {
-        promise.resolve(TOUCH);
-        return;
-      }
-
-      promise.resolve(NONE);
+    try {
+      promise.resolve(Device.getBiometryType(getReactApplicationContext()));
     } catch (Exception e) {
       promise.reject(E_ERROR, Helpers.getError(e));
     }
@@ -216,11 +620,17 @@ public class DeviceCryptoModule extends ReactContextBaseJavaModule {
 
   @ReactMethod
   public void authenticateWithBiometry(ReadableMap options, final Promise promise) {
+    InFlightOperations.Entry operation = operations.register(options, promise);
     try {
-      Authenticator.authenticate(options, getCurrentActivity(), promise);
+      Authenticator.authenticate(options, getCurrentActivity(), operation);
     } catch (Exception e) {
-      Helpers.getError(e);
+      operation.reject(Helpers.getError(e));
     }
   }
 
+  @ReactMethod
+  public void cancel(@NonNull String operationId, @NonNull final Promise promise) {
+    promise.resolve(operations.cancel(operationId));
+  }
+
 }
@@ -0,0 +1,246 @@
+package com.reactnativedevicecrypto;
+
+import androidx.annotation.NonNull;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Chunked AES-GCM file format that can be decrypted at any offset without touching the rest of the file.
+ *
+ * A random file key is wrapped once with the keystore key of the alias, the chunks are sealed with the
+ * file key in software so reading a file costs a single keystore operation instead of one per chunk.
+ * The nonce of each chunk binds its index and whether it's the last one, so chunks cannot be reordered
+ * or the file truncated.
+ *
+ * Layout: magic(4) version(1) chunkSize(4) noncePrefix(7) ivLength(1) iv wrappedKeyLength(2) wrappedKey
+ *         followed by chunks of `chunkSize` plaintext bytes, each sealed with a 16 bytes tag.
+ */
+public class EncryptedFile implements Closeable {
+    private static final byte[] MAGIC = {'R', 'N', 'D', 'C'};
+    private static final int VERSION = 1;
+    private static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
+    private static final int MAX_CHUNK_SIZE = 1024 * 1024;
+    private static final int FILE_KEY_SIZE = 32;
+    private static final int NONCE_PREFIX_SIZE = 7;
+    private static final int TAG_SIZE = 16;
+    private static final String CHUNK_ALGORITHM = "AES/GCM/NoPadding";
+
+    private final RandomAccessFile file;
+    private final Header header;
+    private final SecretKeySpec fileKey;
+    private final Cipher cipher;
+    private final byte[] cipherBuffer;
+    private final byte[] plainBuffer;
+    private long chunkIndex = -1;
+    private int chunkLength = 0;
+
+    private static class Header {
+        int chunkSize;
+        byte[] noncePrefix;
+        byte[] iv;
+        byte[] wrappedKey;
+        int length;
+        long chunks;
+        long plaintextLength;
+    }
+
+    private EncryptedFile(@NonNull RandomAccessFile file, @NonNull Header header, @NonNull SecretKeySpec fileKey) throws Exception {
+        this.file = file;
+        this.header = header;
+        this.fileKey = fileKey;
+        this.cipher = Cipher.getInstance(CHUNK_ALGORITHM);
+        this.cipherBuffer = new byte[header.chunkSize + TAG_SIZE];
+        this.plainBuffer = new byte[header.chunkSize];
+    }
+
+    /**
+     * Opens the file for random access decryption. The alias must not require user authentication.
+     */
+    public static EncryptedFile open(@NonNull String alias, @NonNull File source) throws Exception {
+        RandomAccessFile file = new RandomAccessFile(source, "r");
+        byte[] key = null;
+        try {
+            Header header = readHeader(file);
+            key = OperationSlots.call(slot -> {
+                Cipher unwrapper = slot.hold(Helpers.initializeDecrypter(alias, header.iv));
+                byte[] unwrapped = unwrapper.doFinal(header.wrappedKey);
+                slot.release();
+                return unwrapped;
+            });
+            return new EncryptedFile(file, header, new SecretKeySpec(key, "AES"));
+        } catch (Exception e) {
+            file.close();
+            throw e;
+        } finally {
+            if (key != null) Arrays.fill(key, (byte) 0);
+        }
+    }
+
+    /**
+     * Plaintext size of an encrypted file, without unwrapping its key.
+     */
+    public static long getPlaintextLength(@NonNull File source) throws Exception {
+        try (RandomAccessFile file = new RandomAccessFile(source, "r")) {
+            return readHeader(file).plaintextLength;
+        }
+    }
+
+    public static void encrypt(@NonNull String alias, @NonNull File source, @NonNull File destination) throws Exception {
+        SecureRandom random = new SecureRandom();
+        byte[] key = new byte[FILE_KEY_SIZE];
+        byte[] noncePrefix = new byte[NONCE_PREFIX_SIZE];
+        random.nextBytes(key);
+        random.nextBytes(noncePrefix);
+
+        byte[] buffer = BufferPool.acquire(DEFAULT_CHUNK_SIZE);
+        byte[] sealed = BufferPool.acquire(DEFAULT_CHUNK_SIZE + TAG_SIZE);
+        try (InputStream in = new FileInputStream(source); OutputStream out = new FileOutputStream(destination)) {
+            byte[] header = OperationSlots.call(slot -> {
+                Cipher wrapper = slot.hold(Helpers.initializeEncrypter(alias));
+                byte[] wrappedKey = wrapper.doFinal(key);
+                slot.release();
+                byte[] iv = wrapper.getIV();
+                return ByteBuffer.allocate(MAGIC.length + 1 + 4 + NONCE_PREFIX_SIZE + 1 + iv.length + 2 + wrappedKey.length)
+                        .put(MAGIC).put((byte) VERSION).putInt(DEFAULT_CHUNK_SIZE).put(noncePrefix)
+                        .put((byte) iv.length).put(iv)
+                        .putShort((short) wrappedKey.length).put(wrappedKey)
+                        .array();
+            });
+            out.write(header);
+
+            SecretKeySpec fileKey = new SecretKeySpec(key, "AES");
+            Cipher cipher = Cipher.getInstance(CHUNK_ALGORITHM);
+            long remaining = source.length();
+            long index = 0;
+            do {
+                int length = (int) Math.min(DEFAULT_CHUNK_SIZE, remaining);
+                readFully(in, buffer, length);
+                remaining -= length;
+                cipher.init(Cipher.ENCRYPT_MODE, fileKey, new GCMParameterSpec(TAG_SIZE * 8, nonce(noncePrefix, index++, remaining == 0)));
+                int count = cipher.doFinal(buffer, 0, length, sealed, 0);
+                out.write(sealed, 0, count);
+            } while (remaining > 0);
+        } finally {
+            Arrays.fill(key, (byte) 0);
+            BufferPool.release(buffer);
+            BufferPool.release(sealed);
+        }
+    }
+
+    public long length() {
+        return header.plaintextLength;
+    }
+
+    /**
+     * Reads decrypted bytes starting at `position` of the plaintext.
+     *
+     * @return Number of bytes read or -1 at the end of the file
+     */
+    public synchronized int read(long position, @NonNull byte[] buffer, int offset, int length) throws IOException {
+        if (position >= header.plaintextLength) {
+            return -1;
+        }
+
+        int total = 0;
+        while (total < length && position < header.plaintextLength) {
+            loadChunk(position / header.chunkSize);
+            int chunkOffset = (int) (position % header.chunkSize);
+            int count = Math.min(length - total, chunkLength - chunkOffset);
+            System.arraycopy(plainBuffer, chunkOffset, buffer, offset + total, count);
+            total += count;
+            position += count;
+        }
+        return total;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        Arrays.fill(plainBuffer, (byte) 0);
+        chunkIndex = -1;
+        file.close();
+    }
+
+    private void loadChunk(long index) throws IOException {
+        if (index == chunkIndex) {
+            return;
+        }
+
+        long segmentSize = header.chunkSize + TAG_SIZE;
+        long start = header.length + index * segmentSize;
+        int length = (int) Math.min(segmentSize, file.length() - start);
+        file.seek(start);
+        file.readFully(cipherBuffer, 0, length);
+        try {
+            boolean last = index == header.chunks - 1;
+            cipher.init(Cipher.DECRYPT_MODE, fileKey, new GCMParameterSpec(TAG_SIZE * 8, nonce(header.noncePrefix, index, last)));
+            chunkLength = cipher.doFinal(cipherBuffer, 0, length, plainBuffer, 0);
+            chunkIndex = index;
+        } catch (Exception e) {
+            chunkIndex = -1;
+            throw new IOException("Chunk " + index + " cannot be decrypted.", e);
+        }
+    }
+
+    private static byte[] nonce(@NonNull byte[] prefix, long index, boolean last) {
+        return ByteBuffer.allocate(NONCE_PREFIX_SIZE + 5)
+                .put(prefix)
+                .putInt((int) index)
+                .put((byte) (last ? 1 : 0))
+                .array();
+    }
+
+    private static Header readHeader(@NonNull RandomAccessFile file) throws Exception {
+        byte[] magic = new byte[MAGIC.length];
+        file.seek(0);
+        file.readFully(magic);
+        if (!Arrays.equals(magic, MAGIC) || file.readUnsignedByte() != VERSION) {
+            throw new Exception("The file is not encrypted by this module.");
+        }
+
+        Header header = new Header();
+        header.chunkSize = file.readInt();
+        // Buffers are sized from the header, don't trust it before allocating them
+        if (header.chunkSize <= 0 || header.chunkSize > MAX_CHUNK_SIZE) {
+            throw new Exception("The encrypted file is corrupted.");
+        }
+        header.noncePrefix = new byte[NONCE_PREFIX_SIZE];
+        file.readFully(header.noncePrefix);
+        header.iv = new byte[file.readUnsignedByte()];
+        file.readFully(header.iv);
+        header.wrappedKey = new byte[file.readUnsignedShort()];
+        file.readFully(header.wrappedKey);
+        header.length = (int) file.getFilePointer();
+
+        long body = file.length() - header.length;
+        long segmentSize = header.chunkSize + TAG_SIZE;
+        header.chunks = (body + segmentSize - 1) / segmentSize;
+        if (header.chunks == 0 || body - (header.chunks - 1) * segmentSize < TAG_SIZE) {
+            throw new Exception("The encrypted file is corrupted.");
+        }
+        header.plaintextLength = body - header.chunks * TAG_SIZE;
+        return header;
+    }
+
+    private static void readFully(@NonNull InputStream in, @NonNull byte[] buffer, int length) throws IOException {
+        int read = 0;
+        while (read < length) {
+            int count = in.read(buffer, read, length - read);
+            if (count < 0) {
+                throw new IOException("Unexpected end of file.");
+            }
+            read += count;
+        }
+    }
+}
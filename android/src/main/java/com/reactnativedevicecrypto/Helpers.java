@@ -1,9 +1,12 @@
 package com.reactnativedevicecrypto;
 
+import android.content.Context;
 import android.os.Build;
 import android.security.keystore.KeyGenParameterSpec;
 import android.security.keystore.KeyInfo;
+import android.security.keystore.KeyPermanentlyInvalidatedException;
 import android.security.keystore.KeyProperties;
+import android.security.keystore.UserNotAuthenticatedException;
 import android.util.Base64;
 import android.util.Log;
 import androidx.annotation.IntDef;
@@ -19,6 +22,7 @@ import java.security.KeyPair;
 import java.security.KeyPairGenerator;
 import java.security.KeyStore;
 import java.security.PrivateKey;
+import java.security.ProviderException;
 import java.security.PublicKey;
 import java.security.Signature;
 import java.security.cert.Certificate;
@@ -37,6 +41,8 @@ public class Helpers {
     private static final String KEY_STORE = "AndroidKeyStore";
     private static final String AES_ALGORITHM = "AES/GCM/NoPadding";
     private static final int AES_IV_SIZE = 128;
+    // DER encoded P-256 ECDSA signature
+    private static final int MAX_SIGNATURE_SIZE = 72;
     public static final String PEM_HEADER = "-----BEGIN PUBLIC KEY-----\n";
     public static final String PEM_FOOTER = "-----END PUBLIC KEY-----";
 
@@ -59,6 +65,9 @@ public class Helpers {
 
     public static String getError(Exception e) {
         String errorMessage = e.getCause() != null ? e.getCause().getMessage() : e.getMessage();
+        if (errorMessage == null) {
+            errorMessage = e.getClass().getSimpleName();
+        }
         Log.e(RN_MODULE, errorMessage);
         return errorMessage;
     }
@@ -102,13 +111,44 @@ public class Helpers {
             if (!Device.isAppGrantedToUseBiometry(context)) throw new Exception("The app is not granted to use biometry.");
         }
 
+        // Time bound keys are only initialized inside their validity window, callers prompt when the init is refused
+        if (keyInfo.isUserAuthenticationRequired() && keyInfo.getUserAuthenticationValidityDurationSeconds() > 0) {
+            return true;
+        }
+
         // We always inverted for better usage
         return !keyInfo.isUserAuthenticationRequired();
     }
 
-    protected static KeyGenParameterSpec.Builder getBuilder(@NonNull String alias, @NonNull @KeyType.Types int keyType, @NonNull ReadableMap options) throws Exception {
+    /**
+     * Keys invalidated by a new biometric enrollment only tell so when an operation is started,
+     * the probe is finished without using the key.
+     */
+    public static boolean isKeyInvalidated(@NonNull String alias, @KeyType.Types int keyType) throws Exception {
+        if (!isKeyExists(alias, keyType) || !getKeyInfo(alias, keyType).isUserAuthenticationRequired()) {
+            return false;
+        }
+        return OperationSlots.call(slot -> {
+            try {
+                if (keyType == KeyType.ASYMMETRIC) {
+                    slot.hold(initializeSignature(alias));
+                } else {
+                    slot.hold(initializeEncrypter(alias));
+                }
+                return false;
+            } catch (KeyPermanentlyInvalidatedException e) {
+                return true;
+            } catch (UserNotAuthenticatedException e) {
+                // Time bound key outside of its validity window, still valid
+                return false;
+            }
+        });
+    }
+
+    protected static KeyGenParameterSpec.Builder getBuilder(@NonNull String alias, @NonNull @KeyType.Types int keyType, @NonNull ReadableMap options, boolean strongBox) throws Exception {
         int accessLevel = options.hasKey("accessLevel") ? options.getInt("accessLevel") : Helpers.AccessLevel.ALWAYS;
         boolean invalidateOnNewBiometry = !options.hasKey("invalidateOnNewBiometry") || options.getBoolean("invalidateOnNewBiometry");
+        int validityDuration = options.hasKey("authenticationValidityDuration") ? options.getInt("authenticationValidityDuration") : 0;
         int purposes = KeyProperties.PURPOSE_SIGN | KeyProperties.PURPOSE_VERIFY | KeyProperties.PURPOSE_DECRYPT | KeyProperties.PURPOSE_ENCRYPT;
         KeyGenParameterSpec.Builder builder = new KeyGenParameterSpec.Builder(alias, purposes);
 
@@ -135,34 +175,50 @@ public class Helpers {
             // Sets whether this key is authorized to be used only if the user has been authenticated.
             builder.setUserAuthenticationRequired(true);
             // Allow pin/pass as a fallback on API 30+
+            // A validity duration lets a single authentication unlock the key for that many seconds (eg. queued jobs)
             if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R) {
-              builder.setUserAuthenticationParameters(0, KeyProperties.AUTH_DEVICE_CREDENTIAL | KeyProperties.AUTH_BIOMETRIC_STRONG);
+              builder.setUserAuthenticationParameters(validityDuration, KeyProperties.AUTH_DEVICE_CREDENTIAL | KeyProperties.AUTH_BIOMETRIC_STRONG);
+            } else if (validityDuration > 0) {
+              builder.setUserAuthenticationValidityDurationSeconds(validityDuration);
             }
             // Invalidate the keys if the user has registered a new biometric
             // credential. The variable "invalidatedByBiometricEnrollment" is true by default.
             if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
               builder.setInvalidatedByBiometricEnrollment(invalidateOnNewBiometry);
             }
-            if (Build.VERSION.SDK_INT > Build.VERSION_CODES.R) {
-              builder.setIsStrongBoxBacked(true);
-            }
             break;
         }
 
+        // See KeyPlacement.useStrongBox
+        if (strongBox) {
+            builder.setIsStrongBoxBacked(true);
+        }
+
         return builder;
     }
 
     // ASYMMETRIC KEY METHODS
-    public static PublicKey getOrCreateAsymmetricKey(@NonNull String alias, @NonNull ReadableMap options) throws Exception {
+    public static PublicKey getOrCreateAsymmetricKey(@NonNull String alias, @NonNull ReadableMap options, @NonNull Context context) throws Exception {
         if (isKeyExists(alias, KeyType.ASYMMETRIC)) {
             return getPublicKeyRef(alias);
         }
 
-        KeyGenParameterSpec.Builder builder = getBuilder(alias, KeyType.ASYMMETRIC, options);
+        boolean strongBox = KeyPlacement.useStrongBox(context, KeyType.ASYMMETRIC, options);
+        try {
+            return generateKeyPair(getBuilder(alias, KeyType.ASYMMETRIC, options, strongBox)).getPublic();
+        } catch (ProviderException e) {
+            if (!strongBox || !KeyPlacement.isStrongBoxUnavailable(e) || !KeyPlacement.canFallBack(options)) {
+                throw e;
+            }
+            Log.w(RN_MODULE, "StrongBox is unavailable, creating ".concat(alias).concat(" in TEE."));
+            return generateKeyPair(getBuilder(alias, KeyType.ASYMMETRIC, options, false)).getPublic();
+        }
+    }
+
+    private static KeyPair generateKeyPair(@NonNull KeyGenParameterSpec.Builder builder) throws Exception {
         KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance(KeyProperties.KEY_ALGORITHM_EC, KEY_STORE);
         keyPairGenerator.initialize(builder.build());
-        KeyPair keyPair = keyPairGenerator.generateKeyPair();
-        return keyPair.getPublic();
+        return keyPairGenerator.generateKeyPair();
     }
 
     public static PublicKey getPublicKeyRef(@NonNull String alias) throws Exception {
@@ -198,21 +254,40 @@ public class Helpers {
     }
 
     public static String sign(@NonNull String textToBeSigned, @NonNull Signature signature) throws Exception {
-        signature.update(textToBeSigned.getBytes(UTF_8));
-        byte[] signatureBytes = signature.sign();
-        byte[] signatureEncoded = Base64.encode(signatureBytes, Base64.NO_WRAP);
-        return new String(signatureEncoded);
+        byte[] input = BufferPool.acquire(Codec.maxUtf8Length(textToBeSigned));
+        byte[] output = BufferPool.acquire(MAX_SIGNATURE_SIZE);
+        try {
+            int length = Codec.encodeUtf8(textToBeSigned, input);
+            signature.update(input, 0, length);
+            int signatureLength = signature.sign(output, 0, output.length);
+            return Codec.encodeToString(output, 0, signatureLength, Codec.BASE64);
+        } finally {
+            BufferPool.release(input);
+            BufferPool.release(output);
+        }
     }
 
 
     // SYMMETRIC KEY METHODS
     // ______________________________________________
-    public static SecretKey getOrCreateSymmetricKey(@NonNull String alias, @NonNull ReadableMap options) throws Exception {
+    public static SecretKey getOrCreateSymmetricKey(@NonNull String alias, @NonNull ReadableMap options, @NonNull Context context) throws Exception {
         if (isKeyExists(alias, KeyType.SYMMETRIC)) {
             return getSymmetricKeyRef(alias);
         }
 
-        KeyGenParameterSpec.Builder builder = getBuilder(alias, KeyType.SYMMETRIC, options);
+        boolean strongBox = KeyPlacement.useStrongBox(context, KeyType.SYMMETRIC, options);
+        try {
+            return generateSecretKey(getBuilder(alias, KeyType.SYMMETRIC, options, strongBox));
+        } catch (ProviderException e) {
+            if (!strongBox || !KeyPlacement.isStrongBoxUnavailable(e) || !KeyPlacement.canFallBack(options)) {
+                throw e;
+            }
+            Log.w(RN_MODULE, "StrongBox is unavailable, creating ".concat(alias).concat(" in TEE."));
+            return generateSecretKey(getBuilder(alias, KeyType.SYMMETRIC, options, false));
+        }
+    }
+
+    private static SecretKey generateSecretKey(@NonNull KeyGenParameterSpec.Builder builder) throws Exception {
         KeyGenerator keyGen = KeyGenerator.getInstance(KeyProperties.KEY_ALGORITHM_AES, KEY_STORE);
         keyGen.init(builder.build());
         return keyGen.generateKey();
@@ -224,8 +299,11 @@ public class Helpers {
     }
 
     public static Cipher initializeDecrypter(@NonNull String alias, @NonNull String ivDecoded) throws Exception {
+        return initializeDecrypter(alias, Codec.decode(ivDecoded));
+    }
+
+    public static Cipher initializeDecrypter(@NonNull String alias, @NonNull byte[] iv) throws Exception {
         SecretKey secretKey = getSymmetricKeyRef(alias);
-        byte[] iv = Base64.decode(ivDecoded, Base64.NO_WRAP);
         Cipher cipher = Cipher.getInstance(AES_ALGORITHM);
         GCMParameterSpec spec = new GCMParameterSpec(AES_IV_SIZE, iv);
         cipher.init(Cipher.DECRYPT_MODE, secretKey, spec);
@@ -233,9 +311,17 @@ public class Helpers {
     }
 
     public static String decrypt(@NonNull String textTobeDecrypted, @NonNull Cipher cipher) throws Exception {
-        byte[] encrypted = Base64.decode(textTobeDecrypted, Base64.NO_WRAP);
-        byte[] decryptedBytes = cipher.doFinal(encrypted);
-        return new String(decryptedBytes);
+        byte[] input = BufferPool.acquire(Codec.maxDecodedLength(textTobeDecrypted));
+        byte[] output = null;
+        try {
+            int length = Codec.decode(textTobeDecrypted, input);
+            output = BufferPool.acquire(cipher.getOutputSize(length));
+            int decryptedLength = cipher.doFinal(input, 0, length, output, 0);
+            return new String(output, 0, decryptedLength, UTF_8);
+        } finally {
+            BufferPool.release(input);
+            BufferPool.release(output);
+        }
     }
 
     public static Cipher initializeEncrypter(@NonNull String alias) throws Exception {
@@ -246,11 +332,26 @@ public class Helpers {
     }
 
     public static WritableMap encrypt(@NonNull String textToBeEncrypted, @NonNull Cipher cipher) throws Exception {
-        byte[] encryptedBytes = cipher.doFinal(textToBeEncrypted.getBytes(UTF_8));
+        String encryptedText = encryptToBase64(textToBeEncrypted, cipher);
         WritableMap jsObject = Arguments.createMap();
-        jsObject.putString("iv", Base64.encodeToString(cipher.getIV(), Base64.NO_WRAP));
-        jsObject.putString("encryptedText", Base64.encodeToString(encryptedBytes, Base64.NO_WRAP));
+        jsObject.putString("iv", Codec.encodeToString(cipher.getIV(), Codec.BASE64));
+        jsObject.putString("encryptedText", encryptedText);
         return jsObject;
     }
 
+    // The plaintext only lives in pooled buffers which are zeroed once the cipher is done with them
+    public static String encryptToBase64(@NonNull String textToBeEncrypted, @NonNull Cipher cipher) throws Exception {
+        byte[] input = BufferPool.acquire(Codec.maxUtf8Length(textToBeEncrypted));
+        byte[] output = null;
+        try {
+            int length = Codec.encodeUtf8(textToBeEncrypted, input);
+            output = BufferPool.acquire(cipher.getOutputSize(length));
+            int encryptedLength = cipher.doFinal(input, 0, length, output, 0);
+            return Codec.encodeToString(output, 0, encryptedLength, Codec.BASE64);
+        } finally {
+            BufferPool.release(input);
+            BufferPool.release(output);
+        }
+    }
+
 }
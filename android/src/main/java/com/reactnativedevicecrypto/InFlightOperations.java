@@ -0,0 +1,242 @@
+package com.reactnativedevicecrypto;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.biometric.BiometricPrompt;
+import com.facebook.react.bridge.Promise;
+import com.facebook.react.bridge.ReadableMap;
+import com.facebook.react.bridge.UiThreadUtil;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import static com.reactnativedevicecrypto.Constants.E_CANCELLED;
+import static com.reactnativedevicecrypto.Constants.E_ERROR;
+
+/**
+ * Tracks the crypto operations and prompts of a module instance until their promise is settled,
+ * so they can be cancelled from JS or torn down together with the bridge.
+ */
+public class InFlightOperations {
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    /**
+     * Registers a new operation under `options.operationId`. JS always gives one, an operation
+     * without it could never be cancelled.
+     */
+    public Entry register(@Nullable ReadableMap options, @NonNull Promise promise) {
+        String id = options != null && options.hasKey("operationId") ? options.getString("operationId") : null;
+        if (id == null) {
+            Entry entry = new Entry(UUID.randomUUID().toString(), promise);
+            entry.reject("operationId is required.");
+            return entry;
+        }
+        return register(id, promise);
+    }
+
+    public Entry register(@NonNull String id, @NonNull Promise promise) {
+        Entry entry = new Entry(id, promise);
+        if (entries.putIfAbsent(entry.id, entry) != null) {
+            entry.reject("Operation id ".concat(entry.id).concat(" is already in use."));
+        }
+        return entry;
+    }
+
+    public boolean cancel(@NonNull String id) {
+        Entry entry = entries.get(id);
+        return entry != null && entry.cancel(true);
+    }
+
+    /**
+     * Cancels the operations waiting for the user on a biometric prompt.
+     */
+    public void cancelPrompts() {
+        for (Entry entry : new ArrayList<>(entries.values())) {
+            if (entry.hasPrompt()) {
+                entry.cancel(true);
+            }
+        }
+    }
+
+    public boolean hasPrompts() {
+        for (Entry entry : entries.values()) {
+            if (entry.hasPrompt()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Cancels everything. When `notify` is false the promises are left unsettled as JS side is already gone.
+     */
+    public void cancelAll(boolean notify) {
+        for (Entry entry : new ArrayList<>(entries.values())) {
+            entry.cancel(notify);
+        }
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public class Entry {
+        private final String id;
+        private final Promise promise;
+        private OperationSlots.Slot slot;
+        private BiometricPrompt prompt;
+        private Runnable onSettled;
+        // Thread using the slot's engine, only it may finish the engine
+        private Thread owner;
+        private boolean settled = false;
+
+        private Entry(@NonNull String id, @NonNull Promise promise) {
+            this.id = id;
+            this.promise = promise;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public synchronized boolean isSettled() {
+            return settled;
+        }
+
+        synchronized boolean hasPrompt() {
+            return prompt != null;
+        }
+
+        /**
+         * The slot is released when the operation resolves and aborted when it's rejected or cancelled.
+         * The calling thread claims the operation until it calls `unclaim` or settles it.
+         */
+        synchronized boolean attach(@NonNull OperationSlots.Slot slot) {
+            if (settled) return false;
+            this.slot = slot;
+            this.owner = Thread.currentThread();
+            return true;
+        }
+
+        synchronized boolean detach(@NonNull OperationSlots.Slot slot) {
+            if (settled) return false;
+            if (this.slot == slot) this.slot = null;
+            this.owner = null;
+            return true;
+        }
+
+        /**
+         * Claims the engine for the calling thread, eg. when the prompt succeeds. A cancel arriving
+         * meanwhile only settles the promise, the engine is finished by this thread.
+         */
+        synchronized boolean claim() {
+            if (settled) return false;
+            owner = Thread.currentThread();
+            return true;
+        }
+
+        /**
+         * Gives the engine back without settling, eg. while the prompt is shown. Finishes it if the
+         * operation was cancelled while it was claimed.
+         */
+        void unclaim() {
+            OperationSlots.Slot abandoned = null;
+            synchronized (this) {
+                if (owner != Thread.currentThread()) return;
+                owner = null;
+                if (settled) {
+                    abandoned = slot;
+                    slot = null;
+                }
+            }
+            if (abandoned != null) abandoned.abort();
+        }
+
+        /**
+         * Runs `listener` once the operation is settled, right away if it already is.
+         */
+        void whenSettled(@NonNull Runnable listener) {
+            synchronized (this) {
+                if (!settled) {
+                    onSettled = listener;
+                    return;
+                }
+            }
+            listener.run();
+        }
+
+        synchronized boolean attach(@NonNull BiometricPrompt prompt) {
+            if (settled) return false;
+            this.prompt = prompt;
+            return true;
+        }
+
+        public void resolve(@Nullable Object value) {
+            if (settle(false)) {
+                promise.resolve(value);
+            }
+        }
+
+        public void reject(@NonNull String message) {
+            reject(E_ERROR, message);
+        }
+
+        public void reject(@NonNull String code, @NonNull String message) {
+            if (settle(true)) {
+                promise.reject(code, message);
+            }
+        }
+
+        private boolean cancel(boolean notify) {
+            BiometricPrompt prompt;
+            synchronized (this) {
+                prompt = this.prompt;
+            }
+            if (!settle(true)) {
+                return false;
+            }
+            if (prompt != null) {
+                UiThreadUtil.runOnUiThread(prompt::cancelAuthentication);
+            }
+            if (notify) {
+                promise.reject(E_CANCELLED, "Operation ".concat(id).concat(" was cancelled."));
+            }
+            return true;
+        }
+
+        /**
+         * Marks the entry settled and finishes its slot, unless another thread is using the engine:
+         * calling doFinal/sign concurrently would corrupt it, the owner finishes the slot instead.
+         * The owner may call this after a cancel to finish the slot, only the first call returns true.
+         */
+        private boolean settle(boolean abort) {
+            OperationSlots.Slot slot = null;
+            Runnable listener;
+            boolean first;
+            synchronized (this) {
+                first = !settled;
+                settled = true;
+                prompt = null;
+                listener = onSettled;
+                onSettled = null;
+                if (owner == null || owner == Thread.currentThread()) {
+                    slot = this.slot;
+                    this.slot = null;
+                    owner = null;
+                }
+            }
+            if (first) entries.remove(id, this);
+            if (slot != null) {
+                if (abort) {
+                    slot.abort();
+                } else {
+                    slot.release();
+                }
+            }
+            if (listener != null) {
+                listener.run();
+            }
+            return first;
+        }
+    }
+}
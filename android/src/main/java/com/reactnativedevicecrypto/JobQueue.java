@@ -0,0 +1,601 @@
+package com.reactnativedevicecrypto;
+
+import android.content.Context;
+import android.security.keystore.KeyGenParameterSpec;
+import android.security.keystore.KeyInfo;
+import android.security.keystore.KeyPermanentlyInvalidatedException;
+import android.security.keystore.KeyProperties;
+import android.security.keystore.UserNotAuthenticatedException;
+import android.util.Log;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import com.facebook.react.bridge.ReadableArray;
+import com.facebook.react.bridge.ReadableMap;
+import com.facebook.react.bridge.WritableMap;
+import org.json.JSONObject;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.security.Signature;
+import java.security.UnrecoverableKeyException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import static com.reactnativedevicecrypto.Constants.RN_MODULE;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Durable queue of sign/encrypt jobs for keys that need the user to be present.
+ *
+ * Jobs are appended to a journal so they survive process death, and run once the authentication
+ * validity window of their key is open, so a single prompt settles everything queued in background.
+ * Keys requiring authentication for every use cannot be queued, a prompt authorizes only one of their
+ * operations.
+ *
+ * Each journal line is sealed with a journal key which is wrapped by a keystore key, the text waiting
+ * to be encrypted is never written to disk as plaintext.
+ *
+ * Journal: wrapIv wrappedJournalKey
+ *          followed by one sealed record per line, `add`, `settle` or `ack` of a job
+ */
+public class JobQueue {
+    public static final String SIGN = "SIGN";
+    public static final String ENCRYPT = "ENCRYPT";
+    private static final String JOURNAL_NAME = "devicecrypto-jobs.journal";
+    private static final String CORRUPT_SUFFIX = ".corrupt";
+    private static final String JOURNAL_KEY_ALIAS = "RNDeviceCrypto.jobs";
+    private static final String RECORD_ALGORITHM = "AES/GCM/NoPadding";
+    private static final int JOURNAL_KEY_SIZE = 32;
+    private static final int NONCE_SIZE = 12;
+    private static final int TAG_SIZE = 16;
+    private static final int BATCH_SIZE = 32;
+    // Obsolete records are rewritten out of the journal once there are this many of them
+    private static final int COMPACT_THRESHOLD = 256;
+    private static JobQueue instance;
+
+    private final File file;
+    private final ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private final LinkedHashMap<String, Job> jobs = new LinkedHashMap<>();
+    private final SecureRandom random = new SecureRandom();
+    private SecretKeySpec journalKey;
+    private String header;
+    private int records;
+    private boolean loaded = false;
+    // The last line of the journal is incomplete, it's rewritten before anything is appended after it
+    private boolean torn = false;
+
+    public interface Listener {
+        void onJobsSettled(@NonNull List<Job> jobs);
+    }
+
+    public static class Job {
+        public final String id;
+        public final String type;
+        public final String alias;
+        private String plainText;
+        public String result;
+        public String iv;
+        public String error;
+
+        Job(@NonNull String id, @NonNull String type, @NonNull String alias, @Nullable String plainText) {
+            this.id = id;
+            this.type = type;
+            this.alias = alias;
+            this.plainText = plainText;
+        }
+
+        public boolean isSettled() {
+            return result != null || error != null;
+        }
+    }
+
+    public static class DrainResult {
+        public int settled;
+        public int pending;
+        public boolean authenticationRequired;
+    }
+
+    private JobQueue(@NonNull Context context) {
+        this.file = new File(context.getNoBackupFilesDir(), JOURNAL_NAME);
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    // The journal is shared by every bridge of the process
+    public static synchronized JobQueue getInstance(@NonNull Context context) {
+        if (instance == null) {
+            instance = new JobQueue(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    public void addListener(@NonNull Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(@NonNull Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Runs the task on the queue thread, journal access and keystore operations are kept off the
+     * native modules thread and serialized.
+     */
+    public void execute(@NonNull Runnable task) {
+        executor.execute(task);
+    }
+
+    /**
+     * The journal is created by the first enqueue, there is nothing to drain before.
+     */
+    public boolean hasJournal() {
+        return file.exists();
+    }
+
+    /**
+     * Each entry is `{ alias, type, plainText, id? }`, the given ids make replays idempotent.
+     * All entries are validated before any of them is written.
+     *
+     * @return Ids of the jobs in the order of the entries
+     */
+    public synchronized List<String> enqueue(@NonNull ReadableArray entries) throws Exception {
+        load();
+        Set<String> checked = new HashSet<>();
+        Set<String> ids = new HashSet<>();
+        List<Job> added = new ArrayList<>(entries.size());
+        for (int i = 0; i < entries.size(); i++) {
+            ReadableMap entry = entries.getMap(i);
+            String alias = entry.getString("alias");
+            String type = entry.getString("type");
+            String id = entry.hasKey("id") ? entry.getString("id") : UUID.randomUUID().toString();
+            if (!SIGN.equals(type) && !ENCRYPT.equals(type)) {
+                throw new Exception("Unknown job type: ".concat(String.valueOf(type)));
+            }
+            if (jobs.containsKey(id) || !ids.add(id)) {
+                throw new Exception("Job ".concat(id).concat(" is already queued."));
+            }
+            if (checked.add(type.concat(":").concat(alias))) {
+                checkQueueable(alias, SIGN.equals(type) ? Helpers.KeyType.ASYMMETRIC : Helpers.KeyType.SYMMETRIC);
+            }
+            added.add(new Job(id, type, alias, entry.getString("plainText")));
+        }
+        if (journalKey == null) {
+            create();
+        }
+
+        List<String> lines = new ArrayList<>(added.size());
+        for (Job job : added) {
+            lines.add(seal(toRecord("add", job)));
+        }
+        append(lines);
+
+        List<String> result = new ArrayList<>(added.size());
+        for (Job job : added) {
+            jobs.put(job.id, job);
+            result.add(job.id);
+        }
+        return result;
+    }
+
+    /**
+     * Runs the pending jobs whose keys are usable right now, settling them in batches. Jobs of keys
+     * outside of their authentication validity window stay in the queue.
+     */
+    public synchronized DrainResult drain() throws Exception {
+        load();
+        DrainResult drainResult = new DrainResult();
+        Set<String> locked = new HashSet<>();
+        List<Job> batch = new ArrayList<>(BATCH_SIZE);
+        for (Job job : new ArrayList<>(jobs.values())) {
+            if (job.isSettled()) {
+                continue;
+            }
+            if (locked.contains(job.alias)) {
+                drainResult.pending++;
+                continue;
+            }
+
+            try {
+                run(job);
+            } catch (UserNotAuthenticatedException e) {
+                locked.add(job.alias);
+                drainResult.pending++;
+                drainResult.authenticationRequired = true;
+                continue;
+            } catch (Exception e) {
+                // Keystore is busy with interactive operations, try again on the next drain
+                if (OperationSlots.isRetryable(e)) {
+                    drainResult.pending++;
+                    continue;
+                }
+                job.error = Helpers.getError(e);
+            }
+
+            batch.add(job);
+            if (batch.size() == BATCH_SIZE) {
+                settle(batch);
+                drainResult.settled += batch.size();
+                batch = new ArrayList<>(BATCH_SIZE);
+            }
+        }
+        if (!batch.isEmpty()) {
+            settle(batch);
+            drainResult.settled += batch.size();
+        }
+        compactIfNeeded();
+        return drainResult;
+    }
+
+    /**
+     * Settled jobs are kept until they are acknowledged, results emitted while no JS was listening
+     * are not lost.
+     */
+    public synchronized List<Job> getSettled() throws Exception {
+        load();
+        List<Job> settled = new ArrayList<>();
+        for (Job job : jobs.values()) {
+            if (job.isSettled()) {
+                settled.add(job);
+            }
+        }
+        return settled;
+    }
+
+    public synchronized int getPendingCount() throws Exception {
+        load();
+        int count = 0;
+        for (Job job : jobs.values()) {
+            if (!job.isSettled()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Forgets settled jobs.
+     *
+     * @return Number of jobs removed from the journal
+     */
+    public synchronized int acknowledge(@NonNull ReadableArray ids) throws Exception {
+        load();
+        List<String> lines = new ArrayList<>();
+        List<String> removed = new ArrayList<>();
+        for (int i = 0; i < ids.size(); i++) {
+            Job job = jobs.get(ids.getString(i));
+            if (job != null && job.isSettled() && !removed.contains(job.id)) {
+                lines.add(seal(new JSONObject().put("op", "ack").put("id", job.id)));
+                removed.add(job.id);
+            }
+        }
+        append(lines);
+        for (String id : removed) {
+            jobs.remove(id);
+        }
+        compactIfNeeded();
+        return removed.size();
+    }
+
+    public static void putJob(@NonNull WritableMap jsObject, @NonNull Job job) {
+        jsObject.putString("id", job.id);
+        jsObject.putString("type", job.type);
+        jsObject.putString("alias", job.alias);
+        if (job.error != null) {
+            jsObject.putString("error", job.error);
+            return;
+        }
+        jsObject.putString("result", job.result);
+        if (job.iv != null) {
+            jsObject.putString("iv", job.iv);
+        }
+    }
+
+    private static void checkQueueable(@NonNull String alias, @Helpers.KeyType.Types int keyType) throws Exception {
+        if (!Helpers.isKeyExists(alias, keyType)) {
+            throw new Exception(alias.concat(" is not exists in KeyStore"));
+        }
+        KeyInfo keyInfo = Helpers.getKeyInfo(alias, keyType);
+        if (keyInfo.isUserAuthenticationRequired() && keyInfo.getUserAuthenticationValidityDurationSeconds() <= 0) {
+            throw new Exception(alias.concat(" requires authentication for every use, create it with authenticationValidityDuration to queue jobs."));
+        }
+    }
+
+    // Waits for a slot like the interactive operations, the keystore limit is shared by the whole app
+    private static void run(@NonNull Job job) throws Exception {
+        OperationSlots.call(slot -> {
+            if (SIGN.equals(job.type)) {
+                Signature signature = slot.hold(Helpers.initializeSignature(job.alias));
+                job.result = Helpers.sign(job.plainText, signature);
+            } else {
+                Cipher cipher = slot.hold(Helpers.initializeEncrypter(job.alias));
+                job.result = Helpers.encryptToBase64(job.plainText, cipher);
+                job.iv = Codec.encodeToString(cipher.getIV(), Codec.BASE64);
+            }
+            slot.release();
+            return null;
+        });
+    }
+
+    private void settle(@NonNull List<Job> batch) throws Exception {
+        List<String> lines = new ArrayList<>(batch.size());
+        for (Job job : batch) {
+            JSONObject record = new JSONObject().put("op", "settle").put("id", job.id);
+            putResult(record, job);
+            lines.add(seal(record));
+        }
+        append(lines);
+        for (Job job : batch) {
+            job.plainText = null;
+        }
+
+        List<Job> settled = new ArrayList<>(batch);
+        for (Listener listener : listeners) {
+            listener.onJobsSettled(settled);
+        }
+    }
+
+    // JOURNAL
+    // ______________________________________________
+    private void load() throws Exception {
+        if (loaded) {
+            return;
+        }
+        // Apps that never queue a job get neither the journal nor its key
+        if (!file.exists()) {
+            loaded = true;
+            return;
+        }
+
+        boolean skipped = false;
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), UTF_8))) {
+            if (!Helpers.isKeyExists(JOURNAL_KEY_ALIAS, Helpers.KeyType.SYMMETRIC)) {
+                throw new UnrecoverableKeyException("The job journal key is missing.");
+            }
+            header = reader.readLine();
+            journalKey = unwrapJournalKey(header);
+            String line;
+            while ((line = reader.readLine()) != null) {
+                records++;
+                try {
+                    apply(open(line));
+                } catch (Exception e) {
+                    // A torn write at the end of the journal, the process died while appending
+                    Log.w(RN_MODULE, "Skipping unreadable job record: ".concat(Helpers.getError(e)));
+                    skipped = true;
+                }
+            }
+        } catch (KeyPermanentlyInvalidatedException | UnrecoverableKeyException e) {
+            // The journal key is gone with the keystore (eg. lock screen removed), jobs cannot be recovered
+            Log.e(RN_MODULE, "Discarding job journal: ".concat(Helpers.getError(e)));
+            reset();
+            Helpers.getKeyStore().deleteEntry(JOURNAL_KEY_ALIAS);
+            if (!file.delete()) {
+                throw new IOException("Job journal cannot be discarded.");
+            }
+            loaded = true;
+            return;
+        } catch (AEADBadTagException | IllegalArgumentException e) {
+            // Not sealed by the journal key, kept for inspection instead of being overwritten
+            Log.e(RN_MODULE, "Moving aside corrupted job journal: ".concat(Helpers.getError(e)));
+            reset();
+            if (!file.renameTo(new File(file.getParentFile(), JOURNAL_NAME.concat(CORRUPT_SUFFIX)))) {
+                throw new IOException("Corrupted job journal cannot be moved aside.");
+            }
+            loaded = true;
+            return;
+        } catch (Exception e) {
+            // Eg. the keystore is busy, the journal is left as is and read again on the next call
+            reset();
+            throw e;
+        }
+        loaded = true;
+        if (skipped) {
+            torn = true;
+            compact();
+        }
+    }
+
+    private void reset() {
+        jobs.clear();
+        journalKey = null;
+        header = null;
+        records = 0;
+    }
+
+    private void apply(@NonNull JSONObject record) throws Exception {
+        String id = record.getString("id");
+        switch (record.getString("op")) {
+            case "add":
+                Job job = new Job(id, record.getString("type"), record.getString("alias"), record.optString("plainText", null));
+                readResult(record, job);
+                jobs.put(id, job);
+                break;
+            case "settle":
+                Job pending = jobs.get(id);
+                if (pending != null) {
+                    readResult(record, pending);
+                    pending.plainText = null;
+                }
+                break;
+            case "ack":
+                jobs.remove(id);
+                break;
+        }
+    }
+
+    private static JSONObject toRecord(@NonNull String op, @NonNull Job job) throws Exception {
+        JSONObject record = new JSONObject()
+                .put("op", op)
+                .put("id", job.id)
+                .put("type", job.type)
+                .put("alias", job.alias);
+        if (job.isSettled()) {
+            putResult(record, job);
+        } else {
+            record.put("plainText", job.plainText);
+        }
+        return record;
+    }
+
+    private static void putResult(@NonNull JSONObject record, @NonNull Job job) throws Exception {
+        if (job.error != null) {
+            record.put("error", job.error);
+        } else {
+            record.put("result", job.result);
+            if (job.iv != null) {
+                record.put("iv", job.iv);
+            }
+        }
+    }
+
+    private static void readResult(@NonNull JSONObject record, @NonNull Job job) {
+        job.result = record.optString("result", null);
+        job.iv = record.optString("iv", null);
+        job.error = record.optString("error", null);
+    }
+
+    private void create() throws Exception {
+        byte[] key = new byte[JOURNAL_KEY_SIZE];
+        random.nextBytes(key);
+        try {
+            String alias = getOrCreateWrappingKey();
+            header = OperationSlots.call(slot -> {
+                Cipher wrapper = slot.hold(Helpers.initializeEncrypter(alias));
+                byte[] wrappedKey = wrapper.doFinal(key);
+                slot.release();
+                return Codec.encodeToString(wrapper.getIV(), Codec.BASE64)
+                        .concat(" ")
+                        .concat(Codec.encodeToString(wrappedKey, Codec.BASE64));
+            });
+            journalKey = new SecretKeySpec(key, KeyProperties.KEY_ALGORITHM_AES);
+        } finally {
+            Arrays.fill(key, (byte) 0);
+        }
+        write(file, new ArrayList<>());
+        records = 0;
+        torn = false;
+    }
+
+    private SecretKeySpec unwrapJournalKey(@Nullable String header) throws Exception {
+        String[] parts = header != null ? header.split(" ") : new String[0];
+        if (parts.length != 2) {
+            throw new IllegalArgumentException("The job journal is corrupted.");
+        }
+        byte[] key = OperationSlots.call(slot -> {
+            Cipher unwrapper = slot.hold(Helpers.initializeDecrypter(JOURNAL_KEY_ALIAS, Codec.decode(parts[0])));
+            byte[] unwrapped = unwrapper.doFinal(Codec.decode(parts[1]));
+            slot.release();
+            return unwrapped;
+        });
+        try {
+            return new SecretKeySpec(key, KeyProperties.KEY_ALGORITHM_AES);
+        } finally {
+            Arrays.fill(key, (byte) 0);
+        }
+    }
+
+    // Jobs are queued in background, the wrapping key has to be usable while the device is locked
+    private static String getOrCreateWrappingKey() throws Exception {
+        if (!Helpers.isKeyExists(JOURNAL_KEY_ALIAS, Helpers.KeyType.SYMMETRIC)) {
+            KeyGenParameterSpec spec = new KeyGenParameterSpec.Builder(JOURNAL_KEY_ALIAS, KeyProperties.PURPOSE_ENCRYPT | KeyProperties.PURPOSE_DECRYPT)
+                    .setBlockModes(KeyProperties.BLOCK_MODE_GCM)
+                    .setEncryptionPaddings(KeyProperties.ENCRYPTION_PADDING_NONE)
+                    .setKeySize(256)
+                    .build();
+            KeyGenerator keyGenerator = KeyGenerator.getInstance(KeyProperties.KEY_ALGORITHM_AES, "AndroidKeyStore");
+            keyGenerator.init(spec);
+            keyGenerator.generateKey();
+        }
+        return JOURNAL_KEY_ALIAS;
+    }
+
+    private String seal(@NonNull JSONObject record) throws Exception {
+        byte[] nonce = new byte[NONCE_SIZE];
+        random.nextBytes(nonce);
+        Cipher cipher = Cipher.getInstance(RECORD_ALGORITHM);
+        cipher.init(Cipher.ENCRYPT_MODE, journalKey, new GCMParameterSpec(TAG_SIZE * 8, nonce));
+        byte[] sealed = cipher.doFinal(record.toString().getBytes(UTF_8));
+        return Codec.encodeToString(ByteBuffer.allocate(NONCE_SIZE + sealed.length).put(nonce).put(sealed).array(), Codec.BASE64);
+    }
+
+    private JSONObject open(@NonNull String line) throws Exception {
+        byte[] sealed = Codec.decode(line);
+        Cipher cipher = Cipher.getInstance(RECORD_ALGORITHM);
+        cipher.init(Cipher.DECRYPT_MODE, journalKey, new GCMParameterSpec(TAG_SIZE * 8, sealed, 0, NONCE_SIZE));
+        byte[] plain = cipher.doFinal(sealed, NONCE_SIZE, sealed.length - NONCE_SIZE);
+        return new JSONObject(new String(plain, UTF_8));
+    }
+
+    // A batch is made durable with a single sync instead of one per record
+    private void append(@NonNull List<String> lines) throws Exception {
+        if (lines.isEmpty()) {
+            return;
+        }
+        // Appending after a partial line would merge the first new record into it
+        if (torn) {
+            compact();
+        }
+        try (FileOutputStream out = new FileOutputStream(file, true)) {
+            out.write(join(lines).getBytes(UTF_8));
+            out.getFD().sync();
+        } catch (IOException e) {
+            torn = true;
+            throw e;
+        }
+        records += lines.size();
+    }
+
+    private void write(@NonNull File target, @NonNull List<String> lines) throws IOException {
+        try (FileOutputStream out = new FileOutputStream(target)) {
+            out.write(header.concat("\n").concat(join(lines)).getBytes(UTF_8));
+            out.getFD().sync();
+        }
+    }
+
+    private void compactIfNeeded() throws Exception {
+        if (records - jobs.size() >= COMPACT_THRESHOLD) {
+            compact();
+        }
+    }
+
+    // Rewrites the live jobs only, the temporary journal replaces the old one atomically
+    private void compact() throws Exception {
+        List<String> lines = new ArrayList<>(jobs.size());
+        for (Job job : jobs.values()) {
+            lines.add(seal(toRecord("add", job)));
+        }
+        File compacted = new File(file.getParentFile(), JOURNAL_NAME.concat(".tmp"));
+        write(compacted, lines);
+        if (!compacted.renameTo(file)) {
+            throw new IOException("Job journal cannot be compacted.");
+        }
+        records = lines.size();
+        torn = false;
+    }
+
+    private static String join(@NonNull List<String> lines) {
+        StringBuilder builder = new StringBuilder();
+        for (String line : lines) {
+            builder.append(line).append('\n');
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,272 @@
+package com.reactnativedevicecrypto;
+
+import android.os.Build;
+import android.security.keystore.KeyGenParameterSpec;
+import android.security.keystore.KeyInfo;
+import android.security.keystore.KeyProperties;
+import android.security.keystore.KeyProtection;
+import android.security.keystore.WrappedKeyEntry;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.RequiresApi;
+import com.facebook.react.bridge.ReadableArray;
+import com.facebook.react.bridge.ReadableMap;
+import com.facebook.react.bridge.ReadableType;
+import java.security.KeyFactory;
+import java.security.KeyPairGenerator;
+import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateFactory;
+import java.security.spec.MGF1ParameterSpec;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.crypto.spec.OAEPParameterSpec;
+import javax.crypto.spec.PSource;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Imports server provisioned keys in bulk. Entries are decoded and installed by a few workers in
+ * parallel, so a single bridge call can carry hundreds of keys. A malformed entry only fails itself.
+ */
+public class KeyImporter {
+    private static final int WORKERS = 4;
+    private static final String WRAPPING_TRANSFORMATION = "RSA/ECB/OAEPPadding";
+    private static final ThreadPoolExecutor pool = new ThreadPoolExecutor(WORKERS, WORKERS, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
+
+    static {
+        // Don't keep idle import threads around for the rest of the process lifetime
+        pool.allowCoreThreadTimeOut(true);
+    }
+
+    public interface Callback {
+        void onComplete(@NonNull List<Result> results);
+    }
+
+    public static class Result {
+        public final String alias;
+        public final String error;
+        public final int keyType;
+        public final boolean authenticationRequired;
+
+        Result(@NonNull String alias, @Nullable String error, @Helpers.KeyType.Types int keyType, boolean authenticationRequired) {
+            this.alias = alias;
+            this.error = error;
+            this.keyType = keyType;
+            this.authenticationRequired = authenticationRequired;
+        }
+
+        public boolean isSuccess() {
+            return error == null;
+        }
+    }
+
+    private interface Installer {
+        // Returns the type of the installed key
+        @Helpers.KeyType.Types int install(@NonNull ReadableMap entry, @NonNull KeyStore keyStore) throws Exception;
+    }
+
+    /**
+     * Creates the RSA key the server wraps the provisioned keys to and returns its public key.
+     */
+    @RequiresApi(api = Build.VERSION_CODES.P)
+    public static PublicKey getOrCreateWrappingKey(@NonNull String alias) throws Exception {
+        if (Helpers.isKeyExists(alias, Helpers.KeyType.ASYMMETRIC)) {
+            return getWrappingKey(alias);
+        }
+
+        KeyGenParameterSpec spec = new KeyGenParameterSpec.Builder(alias, KeyProperties.PURPOSE_WRAP_KEY)
+                .setKeySize(2048)
+                .setDigests(KeyProperties.DIGEST_SHA256)
+                .setEncryptionPaddings(KeyProperties.ENCRYPTION_PADDING_RSA_OAEP)
+                .setBlockModes(KeyProperties.BLOCK_MODE_ECB)
+                .build();
+        KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance(KeyProperties.KEY_ALGORITHM_RSA, "AndroidKeyStore");
+        keyPairGenerator.initialize(spec);
+        return keyPairGenerator.generateKeyPair().getPublic();
+    }
+
+    // An existing key under the alias may have been created for something else
+    @RequiresApi(api = Build.VERSION_CODES.P)
+    private static PublicKey getWrappingKey(@NonNull String alias) throws Exception {
+        if (!Helpers.isKeyExists(alias, Helpers.KeyType.ASYMMETRIC)) {
+            throw new Exception(alias.concat(" is not exists in KeyStore"));
+        }
+        PublicKey publicKey = Helpers.getPublicKeyRef(alias);
+        KeyInfo keyInfo = Helpers.getKeyInfo(alias, Helpers.KeyType.ASYMMETRIC);
+        if (!KeyProperties.KEY_ALGORITHM_RSA.equals(publicKey.getAlgorithm()) || (keyInfo.getPurposes() & KeyProperties.PURPOSE_WRAP_KEY) == 0) {
+            throw new Exception(alias.concat(" is not a wrapping key."));
+        }
+        return publicKey;
+    }
+
+    /**
+     * Each entry is `{ alias, wrappedKey }` where `wrappedKey` is the Base64 DER encoded SecureKeyWrapper.
+     * Existing keys are only replaced when `overwrite` is set.
+     */
+    @RequiresApi(api = Build.VERSION_CODES.P)
+    public static void importWrappedKeys(@NonNull String wrappingAlias, @NonNull ReadableArray entries, boolean overwrite, @NonNull Callback callback) throws Exception {
+        getWrappingKey(wrappingAlias);
+
+        OAEPParameterSpec spec = new OAEPParameterSpec("SHA-256", "MGF1", MGF1ParameterSpec.SHA1, PSource.PSpecified.DEFAULT);
+        run(entries, overwrite, (entry, keyStore) -> {
+            String alias = getAlias(entry);
+            byte[] wrapped = Codec.decode(requireString(entry, "wrappedKey"));
+            keyStore.setEntry(alias, new WrappedKeyEntry(wrapped, wrappingAlias, WRAPPING_TRANSFORMATION, spec), null);
+            // The wrapper carries the key type, ask the keystore what it turned out to be
+            return keyStore.entryInstanceOf(alias, KeyStore.SecretKeyEntry.class) ? Helpers.KeyType.SYMMETRIC : Helpers.KeyType.ASYMMETRIC;
+        }, callback);
+    }
+
+    /**
+     * Each entry is `{ alias, keyType, key, certificate?, accessLevel?, invalidateOnNewBiometry? }`.
+     * `key` is the Base64 raw AES key for symmetric keys, PKCS#8 DER EC private key for asymmetric keys
+     * which also requires the Base64 DER X.509 `certificate` of its public key.
+     * Existing keys are only replaced when `overwrite` is set.
+     */
+    public static void importKeys(@NonNull ReadableArray entries, boolean overwrite, @NonNull Callback callback) throws Exception {
+        run(entries, overwrite, (entry, keyStore) -> {
+            String alias = getAlias(entry);
+            int keyType = entry.hasKey("keyType") ? entry.getInt("keyType") : Helpers.KeyType.ASYMMETRIC;
+            byte[] key = Codec.decode(requireString(entry, "key"));
+            KeyProtection protection = getProtection(keyType, entry).build();
+            if (keyType == Helpers.KeyType.SYMMETRIC) {
+                keyStore.setEntry(alias, new KeyStore.SecretKeyEntry(new SecretKeySpec(key, KeyProperties.KEY_ALGORITHM_AES)), protection);
+                return keyType;
+            }
+
+            if (!entry.hasKey("certificate") || entry.isNull("certificate")) {
+                throw new Exception("Certificate is required to import an asymmetric key.");
+            }
+            byte[] certificateBytes = Codec.decode(entry.getString("certificate"));
+            Certificate certificate = CertificateFactory.getInstance("X.509").generateCertificate(new ByteArrayInputStream(certificateBytes));
+            PrivateKey privateKey = KeyFactory.getInstance(KeyProperties.KEY_ALGORITHM_EC).generatePrivate(new PKCS8EncodedKeySpec(key));
+            keyStore.setEntry(alias, new KeyStore.PrivateKeyEntry(privateKey, new Certificate[]{certificate}), protection);
+            return keyType;
+        }, callback);
+    }
+
+    private static String getAlias(@NonNull ReadableMap entry) throws Exception {
+        return requireString(entry, "alias");
+    }
+
+    private static String requireString(@NonNull ReadableMap entry, @NonNull String key) throws Exception {
+        String value = entry.hasKey(key) && !entry.isNull(key) ? entry.getString(key) : null;
+        if (value == null || value.isEmpty()) {
+            throw new Exception("Entry is missing ".concat(key).concat("."));
+        }
+        return value;
+    }
+
+    // The key is installed at this point, not being able to read its info doesn't fail the entry
+    private static boolean isAuthenticationRequired(@NonNull String alias, @Helpers.KeyType.Types int keyType) {
+        try {
+            return Helpers.getKeyInfo(alias, keyType).isUserAuthenticationRequired();
+        } catch (Exception e) {
+            Helpers.getError(e);
+            return false;
+        }
+    }
+
+    protected static KeyProtection.Builder getProtection(@Helpers.KeyType.Types int keyType, @NonNull ReadableMap options) {
+        int accessLevel = options.hasKey("accessLevel") ? options.getInt("accessLevel") : Helpers.AccessLevel.ALWAYS;
+        boolean invalidateOnNewBiometry = !options.hasKey("invalidateOnNewBiometry") || options.getBoolean("invalidateOnNewBiometry");
+        int validityDuration = options.hasKey("authenticationValidityDuration") ? options.getInt("authenticationValidityDuration") : 0;
+        int purposes = KeyProperties.PURPOSE_SIGN | KeyProperties.PURPOSE_VERIFY | KeyProperties.PURPOSE_DECRYPT | KeyProperties.PURPOSE_ENCRYPT;
+        KeyProtection.Builder builder = new KeyProtection.Builder(purposes);
+
+        if (keyType == Helpers.KeyType.ASYMMETRIC) {
+            builder.setDigests(KeyProperties.DIGEST_SHA256);
+        } else {
+            builder.setBlockModes(KeyProperties.BLOCK_MODE_GCM)
+                    .setEncryptionPaddings(KeyProperties.ENCRYPTION_PADDING_NONE)
+                    .setRandomizedEncryptionRequired(true);
+        }
+
+        // Same access levels as the generated keys, see Helpers.getBuilder
+        switch (accessLevel) {
+            case Helpers.AccessLevel.UNLOCKED_DEVICE:
+                builder.setUserAuthenticationRequired(false);
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.P) {
+                    builder.setUnlockedDeviceRequired(true);
+                }
+                break;
+            case Helpers.AccessLevel.AUTHENTICATION_REQUIRED:
+                builder.setUserAuthenticationRequired(true);
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R) {
+                    builder.setUserAuthenticationParameters(validityDuration, KeyProperties.AUTH_DEVICE_CREDENTIAL | KeyProperties.AUTH_BIOMETRIC_STRONG);
+                } else if (validityDuration > 0) {
+                    builder.setUserAuthenticationValidityDurationSeconds(validityDuration);
+                }
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+                    builder.setInvalidatedByBiometricEnrollment(invalidateOnNewBiometry);
+                }
+                break;
+        }
+
+        return builder;
+    }
+
+    private static void run(@NonNull ReadableArray entries, boolean overwrite, @NonNull Installer installer, @NonNull Callback callback) throws Exception {
+        int count = entries.size();
+        if (count == 0) {
+            callback.onComplete(Collections.emptyList());
+            return;
+        }
+
+        // Only the entry maps and aliases are read here, everything else they hold is read by the workers
+        List<ReadableMap> maps = new ArrayList<>(count);
+        Set<String> aliases = new HashSet<>(count);
+        for (int i = 0; i < count; i++) {
+            ReadableMap entry = entries.getType(i) == ReadableType.Map ? entries.getMap(i) : null;
+            // Workers install in any order, the same alias twice would leave either of them in the keystore
+            if (entry != null && entry.hasKey("alias") && entry.getType("alias") == ReadableType.String && !aliases.add(entry.getString("alias"))) {
+                throw new Exception("Duplicate alias in batch: ".concat(entry.getString("alias")));
+            }
+            maps.add(entry);
+        }
+
+        Result[] results = new Result[count];
+        AtomicInteger remaining = new AtomicInteger(count);
+        for (int i = 0; i < count; i++) {
+            final int index = i;
+            pool.execute(() -> {
+                ReadableMap entry = maps.get(index);
+                String alias = entry != null && entry.hasKey("alias") && entry.getType("alias") == ReadableType.String ? entry.getString("alias") : "";
+                String error = null;
+                int keyType = Helpers.KeyType.ASYMMETRIC;
+                boolean authenticationRequired = false;
+                try {
+                    if (entry == null) {
+                        throw new Exception("Entry is not an object.");
+                    }
+                    KeyStore keyStore = Helpers.getKeyStore();
+                    if (!overwrite && keyStore.containsAlias(alias)) {
+                        throw new Exception(alias.concat(" already exists in KeyStore."));
+                    }
+                    keyType = installer.install(entry, keyStore);
+                    authenticationRequired = isAuthenticationRequired(alias, keyType);
+                } catch (Exception e) {
+                    error = Helpers.getError(e);
+                }
+                results[index] = new Result(alias, error, keyType, authenticationRequired);
+                // The last finishing worker reports the whole batch, in the order of the entries
+                if (remaining.decrementAndGet() == 0) {
+                    List<Result> list = new ArrayList<>(count);
+                    Collections.addAll(list, results);
+                    callback.onComplete(list);
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,363 @@
+package com.reactnativedevicecrypto;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.pm.PackageManager;
+import android.os.Build;
+import android.security.keystore.KeyGenParameterSpec;
+import android.security.keystore.KeyInfo;
+import android.security.keystore.KeyProperties;
+import android.security.keystore.StrongBoxUnavailableException;
+import android.util.Log;
+import androidx.annotation.IntDef;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import com.facebook.react.bridge.ReadableMap;
+import java.lang.annotation.Retention;
+import java.security.KeyPairGenerator;
+import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.security.ProviderException;
+import java.security.Signature;
+import java.security.spec.ECGenParameterSpec;
+import java.util.Arrays;
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import static com.reactnativedevicecrypto.Constants.RN_MODULE;
+import static java.lang.annotation.RetentionPolicy.SOURCE;
+
+/**
+ * Decides whether a new key goes to StrongBox or the TEE.
+ *
+ * StrongBox is a separate secure element, on some devices its operations are 10-50x slower than the
+ * TEE. Policies that depend on latency use a microbenchmark of both backends, which runs once in
+ * background and is persisted until the next system update.
+ */
+public class KeyPlacement {
+    private static final String PREFERENCES = "RNDeviceCrypto.placement";
+    private static final String BENCHMARK_ALIAS = "RNDeviceCrypto.benchmark";
+    private static final int ITERATIONS = 5;
+    // KeyInfo.getSecurityLevel and its values are Android 12 (API 31) APIs, newer than the compile SDK
+    private static final int VERSION_CODE_S = 31;
+    private static final int SECURITY_LEVEL_SOFTWARE = 0;
+    private static final int SECURITY_LEVEL_TRUSTED_ENVIRONMENT = 1;
+    private static final int SECURITY_LEVEL_STRONGBOX = 2;
+    private static final Object measureLock = new Object();
+    private static volatile Profile profile;
+    private static boolean measureScheduled = false;
+
+    public interface Policy {
+        @Retention(SOURCE)
+        @IntDef({PREFER_FAST, REQUIRE_STRONGBOX, PREFER_STRONGBOX})
+        @interface Types {}
+        int PREFER_FAST = 0;
+        int REQUIRE_STRONGBOX = 1;
+        int PREFER_STRONGBOX = 2;
+    }
+
+    // Security levels reported for keys
+    public static final String STRONGBOX = "STRONGBOX";
+    public static final String TRUSTED_ENVIRONMENT = "TRUSTED_ENVIRONMENT";
+    // Hardware backed, but which one cannot be told before Android 12
+    public static final String SECURE_HARDWARE = "SECURE_HARDWARE";
+    public static final String SOFTWARE = "SOFTWARE";
+
+    /**
+     * Median latencies in microseconds. StrongBox values are -1 if it's not available.
+     */
+    public static class Profile {
+        public final long teeGenerateKeyPair;
+        public final long teeGenerateSecretKey;
+        public final long teeSign;
+        public final long teeEncrypt;
+        public final long strongBoxGenerateKeyPair;
+        public final long strongBoxGenerateSecretKey;
+        public final long strongBoxSign;
+        public final long strongBoxEncrypt;
+
+        Profile(@NonNull long[] tee, @NonNull long[] strongBox) {
+            this.teeGenerateKeyPair = tee[0];
+            this.teeGenerateSecretKey = tee[1];
+            this.teeSign = tee[2];
+            this.teeEncrypt = tee[3];
+            this.strongBoxGenerateKeyPair = strongBox[0];
+            this.strongBoxGenerateSecretKey = strongBox[1];
+            this.strongBoxSign = strongBox[2];
+            this.strongBoxEncrypt = strongBox[3];
+        }
+
+        public boolean isStrongBoxAvailable() {
+            return strongBoxSign >= 0;
+        }
+
+        // Keys are created once and used many times, the operation latency is what users feel
+        long getLatency(boolean strongBox, @Helpers.KeyType.Types int keyType) {
+            if (keyType == Helpers.KeyType.ASYMMETRIC) {
+                return strongBox ? strongBoxSign : teeSign;
+            }
+            return strongBox ? strongBoxEncrypt : teeEncrypt;
+        }
+
+        private String serialize() {
+            return Build.FINGERPRINT + "|" + teeGenerateKeyPair + "," + teeGenerateSecretKey + "," + teeSign + "," + teeEncrypt
+                    + "|" + strongBoxGenerateKeyPair + "," + strongBoxGenerateSecretKey + "," + strongBoxSign + "," + strongBoxEncrypt;
+        }
+
+        @Nullable
+        private static Profile deserialize(@Nullable String value) {
+            String[] parts = value != null ? value.split("\\|") : new String[0];
+            // Measured on another system image, firmware updates change the numbers
+            if (parts.length != 3 || !parts[0].equals(Build.FINGERPRINT)) {
+                return null;
+            }
+            try {
+                return new Profile(parseLatencies(parts[1]), parseLatencies(parts[2]));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
+        private static long[] parseLatencies(@NonNull String value) {
+            String[] values = value.split(",");
+            if (values.length != 4) {
+                throw new NumberFormatException(value);
+            }
+            long[] latencies = new long[values.length];
+            for (int i = 0; i < values.length; i++) {
+                latencies[i] = Long.parseLong(values[i]);
+            }
+            return latencies;
+        }
+    }
+
+    public static boolean hasStrongBox(@NonNull Context context) {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.P
+                && context.getPackageManager().hasSystemFeature(PackageManager.FEATURE_STRONGBOX_KEYSTORE);
+    }
+
+    /**
+     * Without a policy `AUTHENTICATION_REQUIRED` keys prefer StrongBox on Android 12+, every other key
+     * is created in the TEE. Until the profile is measured, `PREFER_FAST` picks the TEE and
+     * `PREFER_STRONGBOX` ignores its latency budget.
+     */
+    public static boolean useStrongBox(@NonNull Context context, @Helpers.KeyType.Types int keyType, @NonNull ReadableMap options) throws Exception {
+        int accessLevel = options.hasKey("accessLevel") ? options.getInt("accessLevel") : Helpers.AccessLevel.ALWAYS;
+        if (!options.hasKey("placement")) {
+            return accessLevel == Helpers.AccessLevel.AUTHENTICATION_REQUIRED
+                    && Build.VERSION.SDK_INT > Build.VERSION_CODES.R
+                    && hasStrongBox(context);
+        }
+
+        int policy = options.getInt("placement");
+        if (!hasStrongBox(context)) {
+            if (policy == Policy.REQUIRE_STRONGBOX) {
+                throw new Exception("StrongBox is not available on this device.");
+            }
+            return false;
+        }
+
+        switch (policy) {
+            case Policy.REQUIRE_STRONGBOX:
+                return true;
+            case Policy.PREFER_FAST: {
+                Profile profile = getCachedProfile(context);
+                if (profile == null) {
+                    measureInBackground(context);
+                    return false;
+                }
+                return profile.isStrongBoxAvailable() && profile.getLatency(true, keyType) < profile.getLatency(false, keyType);
+            }
+            case Policy.PREFER_STRONGBOX: {
+                if (!options.hasKey("strongBoxLatencyBudget")) {
+                    return true;
+                }
+                Profile profile = getCachedProfile(context);
+                if (profile == null) {
+                    measureInBackground(context);
+                    return true;
+                }
+                long budget = (long) (options.getDouble("strongBoxLatencyBudget") * 1000);
+                return profile.isStrongBoxAvailable() && profile.getLatency(true, keyType) <= budget;
+            }
+            default:
+                throw new Exception("Unknown key placement: ".concat(String.valueOf(policy)));
+        }
+    }
+
+    public static boolean canFallBack(@NonNull ReadableMap options) {
+        return !options.hasKey("placement") || options.getInt("placement") != Policy.REQUIRE_STRONGBOX;
+    }
+
+    /**
+     * StrongBox may refuse a key it advertises support for, eg. when it runs out of slots.
+     */
+    public static boolean isStrongBoxUnavailable(@NonNull ProviderException e) {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.P && e instanceof StrongBoxUnavailableException;
+    }
+
+    public static String getSecurityLevel(@NonNull String alias, @Helpers.KeyType.Types int keyType) throws Exception {
+        KeyInfo keyInfo = Helpers.getKeyInfo(alias, keyType);
+        if (Build.VERSION.SDK_INT >= VERSION_CODE_S) {
+            try {
+                switch ((Integer) KeyInfo.class.getMethod("getSecurityLevel").invoke(keyInfo)) {
+                    case SECURITY_LEVEL_STRONGBOX:
+                        return STRONGBOX;
+                    case SECURITY_LEVEL_TRUSTED_ENVIRONMENT:
+                        return TRUSTED_ENVIRONMENT;
+                    case SECURITY_LEVEL_SOFTWARE:
+                        return SOFTWARE;
+                }
+            } catch (ReflectiveOperationException e) {
+                Log.w(RN_MODULE, "Key security level is not available: ".concat(Helpers.getError(e)));
+            }
+        }
+        return keyInfo.isInsideSecureHardware() ? SECURE_HARDWARE : SOFTWARE;
+    }
+
+    /**
+     * Returns the measured profile, or null if the benchmark hasn't run on this system image yet.
+     */
+    @Nullable
+    public static Profile getCachedProfile(@NonNull Context context) {
+        if (profile == null) {
+            SharedPreferences preferences = context.getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE);
+            profile = Profile.deserialize(preferences.getString("profile", null));
+        }
+        return profile;
+    }
+
+    /**
+     * Returns the persisted profile, measures both backends on the first call. StrongBox key
+     * generation can take a second, call it from a background thread.
+     */
+    public static Profile getProfile(@NonNull Context context) throws Exception {
+        // Readers of the cached profile don't wait for a measurement in progress
+        synchronized (measureLock) {
+            Profile cached = getCachedProfile(context);
+            if (cached != null) {
+                return cached;
+            }
+
+            long[] strongBox = {-1, -1, -1, -1};
+            if (hasStrongBox(context)) {
+                try {
+                    strongBox = measure(true);
+                } catch (ProviderException e) {
+                    if (!isStrongBoxUnavailable(e)) {
+                        throw e;
+                    }
+                    Log.w(RN_MODULE, "StrongBox is advertised but unavailable.");
+                }
+            }
+            Profile measured = new Profile(measure(false), strongBox);
+            context.getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE).edit().putString("profile", measured.serialize()).apply();
+            profile = measured;
+            return measured;
+        }
+    }
+
+    private static synchronized void measureInBackground(@NonNull Context context) {
+        if (measureScheduled) {
+            return;
+        }
+        measureScheduled = true;
+        Context applicationContext = context.getApplicationContext();
+        DeviceCryptoModule.backgroundExecutor.execute(() -> {
+            try {
+                getProfile(applicationContext);
+            } catch (Exception e) {
+                Log.w(RN_MODULE, "Key placement benchmark failed: ".concat(Helpers.getError(e)));
+            } finally {
+                synchronized (KeyPlacement.class) {
+                    measureScheduled = false;
+                }
+            }
+        });
+    }
+
+    // { generateKeyPair, generateSecretKey, sign, encrypt } medians in microseconds, keys are deleted afterwards.
+    // Operations take a slot like any other and are timed once they have it, waiting doesn't count.
+    private static long[] measure(boolean strongBox) throws Exception {
+        String signingAlias = BENCHMARK_ALIAS.concat(".ec");
+        String encryptionAlias = BENCHMARK_ALIAS.concat(".aes");
+        byte[] data = new byte[32];
+        long[] generateKeyPair = new long[ITERATIONS];
+        long[] generateSecretKey = new long[ITERATIONS];
+        long[] sign = new long[ITERATIONS];
+        long[] encrypt = new long[ITERATIONS];
+        KeyStore keyStore = Helpers.getKeyStore();
+
+        try {
+            PrivateKey privateKey = null;
+            SecretKey secretKey = null;
+            for (int i = 0; i < ITERATIONS; i++) {
+                // StrongBox has few key slots, each sample replaces the previous key
+                keyStore.deleteEntry(signingAlias);
+                keyStore.deleteEntry(encryptionAlias);
+
+                long start = System.nanoTime();
+                privateKey = generateKeyPair(signingAlias, strongBox);
+                generateKeyPair[i] = System.nanoTime() - start;
+
+                start = System.nanoTime();
+                secretKey = generateSecretKey(encryptionAlias, strongBox);
+                generateSecretKey[i] = System.nanoTime() - start;
+            }
+
+            PrivateKey signingKey = privateKey;
+            SecretKey encryptionKey = secretKey;
+            for (int i = 0; i < ITERATIONS; i++) {
+                sign[i] = OperationSlots.call(slot -> {
+                    long start = System.nanoTime();
+                    Signature signature = Signature.getInstance("SHA256withECDSA");
+                    signature.initSign(signingKey);
+                    slot.hold(signature).update(data);
+                    signature.sign();
+                    slot.release();
+                    return System.nanoTime() - start;
+                });
+
+                encrypt[i] = OperationSlots.call(slot -> {
+                    long start = System.nanoTime();
+                    Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+                    cipher.init(Cipher.ENCRYPT_MODE, encryptionKey);
+                    slot.hold(cipher).doFinal(data);
+                    slot.release();
+                    return System.nanoTime() - start;
+                });
+            }
+        } finally {
+            keyStore.deleteEntry(signingAlias);
+            keyStore.deleteEntry(encryptionAlias);
+        }
+        return new long[]{median(generateKeyPair) / 1000, median(generateSecretKey) / 1000, median(sign) / 1000, median(encrypt) / 1000};
+    }
+
+    private static PrivateKey generateKeyPair(@NonNull String alias, boolean strongBox) throws Exception {
+        KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance(KeyProperties.KEY_ALGORITHM_EC, "AndroidKeyStore");
+        keyPairGenerator.initialize(new KeyGenParameterSpec.Builder(alias, KeyProperties.PURPOSE_SIGN)
+                .setAlgorithmParameterSpec(new ECGenParameterSpec("secp256r1"))
+                .setDigests(KeyProperties.DIGEST_SHA256)
+                .setIsStrongBoxBacked(strongBox)
+                .build());
+        return keyPairGenerator.generateKeyPair().getPrivate();
+    }
+
+    private static SecretKey generateSecretKey(@NonNull String alias, boolean strongBox) throws Exception {
+        KeyGenerator keyGenerator = KeyGenerator.getInstance(KeyProperties.KEY_ALGORITHM_AES, "AndroidKeyStore");
+        keyGenerator.init(new KeyGenParameterSpec.Builder(alias, KeyProperties.PURPOSE_ENCRYPT)
+                .setBlockModes(KeyProperties.BLOCK_MODE_GCM)
+                .setEncryptionPaddings(KeyProperties.ENCRYPTION_PADDING_NONE)
+                .setKeySize(256)
+                .setIsStrongBoxBacked(strongBox)
+                .build());
+        return keyGenerator.generateKey();
+    }
+
+    private static long median(@NonNull long[] values) {
+        long[] sorted = values.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+}
@@ -0,0 +1,280 @@
+package com.reactnativedevicecrypto;
+
+import android.util.Log;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import java.security.Signature;
+import java.util.ArrayDeque;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.crypto.Cipher;
+import static com.reactnativedevicecrypto.Constants.RN_MODULE;
+
+/**
+ * Bounds the number of keystore operations (Cipher/Signature init) the module keeps open at once.
+ * Keystore limits concurrent operations per app and prunes or refuses new ones when the limit is hit,
+ * so excess requests are queued in arrival order and served as soon as a slot is released.
+ */
+public class OperationSlots {
+    private static final int MAX_OPERATIONS = 8;
+    // Operations waiting on a prompt that don't count against MAX_OPERATIONS, both stay below the keystore limit
+    private static final int MAX_PARKED = 4;
+    private static final int MAX_RETRIES = 3;
+    private static final long RETRY_BACKOFF_MS = 50;
+
+    static final String WORKER_NAME = "RNDeviceCrypto-slot-";
+
+    private static final ArrayDeque<Runnable> pending = new ArrayDeque<>();
+    // Only times retry backoffs, operations never run on it
+    private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    // Runs tasks handed a released slot, one thread per slot so queued operations keep running in parallel
+    private static final ThreadPoolExecutor workers = createWorkers();
+    private static int openOperations = 0;
+    private static int parkedOperations = 0;
+
+    public interface Operation {
+        /**
+         * Runs with a reserved slot attached to the in-flight entry. Settling the entry releases
+         * or aborts the slot, throwing rejects the entry.
+         */
+        void run(@NonNull Slot slot) throws Exception;
+    }
+
+    public interface Call<T> {
+        /**
+         * Runs on the calling thread with a reserved slot. Release the slot once the engine has
+         * completed, otherwise it's aborted when this returns.
+         */
+        T run(@NonNull Slot slot) throws Exception;
+    }
+
+    public static class Slot {
+        private Object engine;
+        private boolean released = false;
+        private boolean parked = false;
+
+        /**
+         * Registers the initialized engine so it can be finalized if the operation is abandoned.
+         */
+        public synchronized <T> T hold(@NonNull T engine) {
+            this.engine = engine;
+            return engine;
+        }
+
+        /**
+         * Call after the engine has completed (doFinal/sign) normally.
+         */
+        public void release() {
+            boolean wasParked;
+            synchronized (this) {
+                if (released) return;
+                released = true;
+                engine = null;
+                wasParked = parked;
+            }
+            if (wasParked) {
+                synchronized (pending) {
+                    parkedOperations--;
+                }
+            } else {
+                onSlotReleased();
+            }
+        }
+
+        /**
+         * Hands the slot over to the next operation while the engine waits for the user, a prompt
+         * left on screen must not hold up everything else. The engine is still finished by release
+         * or abort. Beyond MAX_PARKED the slot stays taken.
+         */
+        public void park() {
+            synchronized (this) {
+                if (released || parked) return;
+                synchronized (pending) {
+                    if (parkedOperations >= MAX_PARKED) return;
+                    parkedOperations++;
+                }
+                parked = true;
+            }
+            onSlotReleased();
+        }
+
+        /**
+         * Finishes the keystore operation of an engine that will not be used anymore, instead of
+         * leaving it open until the engine is garbage collected, then releases the slot.
+         */
+        public void abort() {
+            Object engine;
+            synchronized (this) {
+                if (released) return;
+                engine = this.engine;
+            }
+            try {
+                if (engine instanceof Cipher) {
+                    ((Cipher) engine).doFinal();
+                } else if (engine instanceof Signature) {
+                    ((Signature) engine).sign();
+                }
+            } catch (Exception ignored) {
+                // Finishing an unauthenticated or empty operation fails, the keystore drops it either way
+            }
+            release();
+        }
+    }
+
+    public static void execute(@NonNull InFlightOperations.Entry entry, @NonNull Operation operation) {
+        if (entry.isSettled()) return;
+        submit(new Task(entry, operation));
+    }
+
+    /**
+     * Waits for a slot in line with the other operations and runs on the calling thread, for
+     * background work not tied to a promise (job drain, invalidation probes). Refused operations
+     * are retried like the queued ones.
+     */
+    public static <T> T call(@NonNull Call<T> call) throws Exception {
+        for (int attempt = 0; ; attempt++) {
+            Slot slot = acquire();
+            try {
+                return call.run(slot);
+            } catch (Exception e) {
+                if (attempt >= MAX_RETRIES || !isRetryable(e)) {
+                    throw e;
+                }
+            } finally {
+                slot.abort();
+            }
+            long delay = RETRY_BACKOFF_MS << attempt;
+            Log.w(RN_MODULE, "Keystore operation was refused, retrying in ".concat(String.valueOf(delay)).concat("ms"));
+            Thread.sleep(delay);
+        }
+    }
+
+    private static Slot acquire() {
+        CountDownLatch granted = new CountDownLatch(1);
+        submit(granted::countDown);
+        // The slot is granted either way, an interrupt must not leave it to no one
+        boolean interrupted = false;
+        while (true) {
+            try {
+                granted.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        return new Slot();
+    }
+
+    public static int getOpenOperations() {
+        synchronized (pending) {
+            return openOperations;
+        }
+    }
+
+    public static int getParkedOperations() {
+        synchronized (pending) {
+            return parkedOperations;
+        }
+    }
+
+    public static int getPendingOperations() {
+        synchronized (pending) {
+            return pending.size();
+        }
+    }
+
+    private static void submit(@NonNull Runnable task) {
+        synchronized (pending) {
+            // Late comers wait behind the queue even if a slot is free to keep the order fair
+            if (openOperations >= MAX_OPERATIONS || !pending.isEmpty()) {
+                pending.add(task);
+                return;
+            }
+            openOperations++;
+        }
+        task.run();
+    }
+
+    private static void onSlotReleased() {
+        Runnable next;
+        synchronized (pending) {
+            next = pending.poll();
+            if (next == null) {
+                openOperations--;
+                return;
+            }
+        }
+        // The slot is handed over to the next task as is
+        workers.execute(next);
+    }
+
+    private static ThreadPoolExecutor createWorkers() {
+        AtomicInteger count = new AtomicInteger();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(MAX_OPERATIONS, MAX_OPERATIONS, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), runnable -> new Thread(runnable, WORKER_NAME + count.incrementAndGet()));
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    static boolean isRetryable(@Nullable Throwable e) {
+        while (e != null) {
+            String message = e.getMessage();
+            if (message != null && (message.contains("Too many operations")
+                    || message.contains("TOO_MANY_OPERATIONS")
+                    || message.contains("BACKEND_BUSY")
+                    || message.contains("INVALID_OPERATION_HANDLE")
+                    || message.contains("pruned"))) {
+                return true;
+            }
+            e = e.getCause();
+        }
+        return false;
+    }
+
+    private static class Task implements Runnable {
+        private final InFlightOperations.Entry entry;
+        private final Operation operation;
+        private int attempt = 0;
+
+        Task(@NonNull InFlightOperations.Entry entry, @NonNull Operation operation) {
+            this.entry = entry;
+            this.operation = operation;
+        }
+
+        @Override
+        public void run() {
+            Slot slot = new Slot();
+            // Cancelled while waiting in the queue
+            if (!entry.attach(slot)) {
+                slot.release();
+                return;
+            }
+            try {
+                operation.run(slot);
+                // Still pending, eg. waiting on the prompt which claims the engine again when it succeeds
+                entry.unclaim();
+                if (!entry.isSettled()) {
+                    slot.park();
+                }
+            } catch (Exception e) {
+                if (attempt < MAX_RETRIES && isRetryable(e) && entry.detach(slot)) {
+                    slot.abort();
+                    long delay = RETRY_BACKOFF_MS << attempt++;
+                    Log.w(RN_MODULE, "Keystore operation was refused, retrying in ".concat(String.valueOf(delay)).concat("ms"));
+                    scheduler.schedule(() -> workers.execute(() -> submit(this)), delay, TimeUnit.MILLISECONDS);
+                    return;
+                }
+                entry.reject(Helpers.getError(e));
+                slot.abort();
+            }
+        }
+    }
+}
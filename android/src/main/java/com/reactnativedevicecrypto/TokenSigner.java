@@ -0,0 +1,419 @@
+package com.reactnativedevicecrypto;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import com.facebook.react.bridge.ReadableMap;
+import java.io.ByteArrayOutputStream;
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.math.RoundingMode;
+import java.security.Signature;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Builds compact JWS (RFC 7515) and COSE_Sign1 (RFC 8152) tokens natively so that
+ * serialization, signing and the DER to raw r||s conversion happen in a single bridge call.
+ */
+public class TokenSigner {
+    private static final String JWS_ALGORITHM = "ES256";
+    private static final int COSE_SIGN1_TAG = 18;
+    private static final int P256_COORDINATE_SIZE = 32;
+    // Number.MAX_SAFE_INTEGER, larger JS numbers aren't exact integers anymore
+    private static final double MAX_SAFE_INTEGER = 9007199254740991d;
+
+    // alias -> last header and its encoding, the same header is serialized once
+    private static final Map<String, EncodedHeader> jwsHeaderCache = new ConcurrentHashMap<>();
+    // { 1 (alg): -7 (ES256) }, identical for every key the module creates
+    private static final byte[] COSE_PROTECTED_HEADER = {(byte) 0xa1, 0x01, 0x26};
+
+    private static class EncodedHeader {
+        final Map<String, Object> header;
+        final String encoded;
+
+        EncodedHeader(@NonNull Map<String, Object> header, @NonNull String encoded) {
+            this.header = header;
+            this.encoded = encoded;
+        }
+    }
+
+    public static void invalidate(@NonNull String alias) {
+        jwsHeaderCache.remove(alias);
+    }
+
+    // JWS
+    // ______________________________________________
+    public static String getJwsSigningInput(@NonNull String alias, @Nullable ReadableMap header, @NonNull ReadableMap claims) {
+        Map<String, Object> headerMap = header != null ? header.toHashMap() : new HashMap<>();
+        headerMap.put("alg", JWS_ALGORITHM);
+        if (!headerMap.containsKey("typ")) {
+            headerMap.put("typ", "JWT");
+        }
+
+        // Compared by content, a repeated header skips both serialization and encoding
+        EncodedHeader cached = jwsHeaderCache.get(alias);
+        String encodedHeader;
+        if (cached != null && cached.header.equals(headerMap)) {
+            encodedHeader = cached.encoded;
+        } else {
+            encodedHeader = base64Url(toCanonicalJson(headerMap));
+            jwsHeaderCache.put(alias, new EncodedHeader(headerMap, encodedHeader));
+        }
+
+        String encodedClaims = base64Url(toCanonicalJson(claims.toHashMap()));
+        return encodedHeader.concat(".").concat(encodedClaims);
+    }
+
+    public static String signJws(@NonNull String signingInput, @NonNull Signature signature) throws Exception {
+        // The signing input is Base64url, every char is a single byte
+        byte[] input = BufferPool.acquire(signingInput.length());
+        try {
+            int length = Codec.encodeUtf8(signingInput, input);
+            signature.update(input, 0, length);
+        } finally {
+            BufferPool.release(input);
+        }
+        byte[] rawSignature = derToJose(signature.sign());
+        return signingInput.concat(".").concat(base64Url(rawSignature));
+    }
+
+    // COSE_Sign1
+    // ______________________________________________
+    public static byte[] getCosePayload(@NonNull ReadableMap claims) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeCbor(out, claims.toHashMap());
+        return out.toByteArray();
+    }
+
+    public static String signCose(@NonNull byte[] payload, @NonNull Signature signature) throws Exception {
+        byte[] protectedHeader = COSE_PROTECTED_HEADER;
+
+        // Sig_structure = ["Signature1", protected, external_aad, payload]
+        ByteArrayOutputStream toBeSigned = new ByteArrayOutputStream();
+        writeCborHead(toBeSigned, 4, 4);
+        writeCbor(toBeSigned, "Signature1");
+        writeCborBytes(toBeSigned, protectedHeader);
+        writeCborBytes(toBeSigned, new byte[0]);
+        writeCborBytes(toBeSigned, payload);
+
+        signature.update(toBeSigned.toByteArray());
+        byte[] rawSignature = derToJose(signature.sign());
+
+        // COSE_Sign1 = 18([protected, unprotected, payload, signature])
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeCborHead(out, 6, COSE_SIGN1_TAG);
+        writeCborHead(out, 4, 4);
+        writeCborBytes(out, protectedHeader);
+        writeCborHead(out, 5, 0);
+        writeCborBytes(out, payload);
+        writeCborBytes(out, rawSignature);
+        return base64Url(out.toByteArray());
+    }
+
+    // ENCODING HELPERS
+    // ______________________________________________
+    public static String base64Url(@NonNull byte[] bytes) {
+        return Codec.encodeToString(bytes, Codec.BASE64URL);
+    }
+
+    private static String base64Url(@NonNull String json) {
+        byte[] bytes = BufferPool.acquire(Codec.maxUtf8Length(json));
+        try {
+            return Codec.encodeToString(bytes, 0, Codec.encodeUtf8(json, bytes), Codec.BASE64URL);
+        } finally {
+            BufferPool.release(bytes);
+        }
+    }
+
+    /**
+     * Converts an ASN.1 DER encoded ECDSA signature into the fixed length r||s form used by JOSE and COSE.
+     */
+    public static byte[] derToJose(@NonNull byte[] der) throws Exception {
+        if (der.length < 8 || der[0] != 0x30) {
+            throw new Exception("Invalid DER signature.");
+        }
+        int offset = (der[1] & 0x80) != 0 ? 2 + (der[1] & 0x7f) : 2;
+        byte[] raw = new byte[P256_COORDINATE_SIZE * 2];
+        for (int i = 0; i < 2; i++) {
+            if (der[offset] != 0x02) {
+                throw new Exception("Invalid DER signature.");
+            }
+            int length = der[offset + 1];
+            int start = offset + 2;
+            int end = start + length;
+            // Skip the sign padding of the integer
+            while (length > P256_COORDINATE_SIZE && der[start] == 0) {
+                start++;
+                length--;
+            }
+            if (length > P256_COORDINATE_SIZE) {
+                throw new Exception("Invalid DER signature.");
+            }
+            System.arraycopy(der, start, raw, (i + 1) * P256_COORDINATE_SIZE - length, length);
+            offset = end;
+        }
+        return raw;
+    }
+
+    /**
+     * Serializes the map with lexicographically sorted keys and no insignificant whitespace.
+     */
+    @SuppressWarnings("unchecked")
+    static String toCanonicalJson(Object value) {
+        StringBuilder sb = new StringBuilder();
+        if (value == null) {
+            sb.append("null");
+        } else if (value instanceof Map) {
+            TreeMap<String, Object> sorted = new TreeMap<>((Map<String, Object>) value);
+            sb.append('{');
+            boolean first = true;
+            for (Map.Entry<String, Object> entry : sorted.entrySet()) {
+                if (!first) sb.append(',');
+                first = false;
+                sb.append(quote(entry.getKey())).append(':').append(toCanonicalJson(entry.getValue()));
+            }
+            sb.append('}');
+        } else if (value instanceof List) {
+            sb.append('[');
+            boolean first = true;
+            for (Object item : (List<Object>) value) {
+                if (!first) sb.append(',');
+                first = false;
+                sb.append(toCanonicalJson(item));
+            }
+            sb.append(']');
+        } else if (value instanceof Number) {
+            sb.append(formatNumber(((Number) value).doubleValue()));
+        } else if (value instanceof Boolean) {
+            sb.append(value.toString());
+        } else {
+            sb.append(quote(value.toString()));
+        }
+        return sb.toString();
+    }
+
+    private static boolean isSafeInteger(double number) {
+        return number == Math.rint(number) && Math.abs(number) <= MAX_SAFE_INTEGER;
+    }
+
+    /**
+     * Formats the number like JSON.stringify does (ECMAScript Number::toString), so the claims
+     * serialize to the same bytes as on the JS side.
+     */
+    static String formatNumber(double number) {
+        if (Double.isNaN(number) || Double.isInfinite(number)) {
+            return "null";
+        }
+        if (isSafeInteger(number)) {
+            // Also turns -0 into 0
+            return Long.toString((long) number);
+        }
+
+        // Shortest digits that round trip, the closest to the value when several do
+        BigDecimal exact = new BigDecimal(number);
+        BigDecimal shortest = exact;
+        for (int precision = 1; precision <= 17; precision++) {
+            shortest = exact.round(new MathContext(precision, RoundingMode.HALF_EVEN));
+            if (shortest.doubleValue() == number) {
+                break;
+            }
+        }
+        shortest = shortest.stripTrailingZeros();
+        String digits = shortest.unscaledValue().abs().toString();
+        int k = digits.length();
+        // The value is 0.digits * 10^n
+        int n = k - shortest.scale();
+
+        StringBuilder sb = new StringBuilder();
+        if (number < 0) {
+            sb.append('-');
+        }
+        if (k <= n && n <= 21) {
+            sb.append(digits);
+            for (int i = k; i < n; i++) {
+                sb.append('0');
+            }
+        } else if (0 < n && n <= 21) {
+            sb.append(digits, 0, n).append('.').append(digits, n, k);
+        } else if (-6 < n && n <= 0) {
+            sb.append("0.");
+            for (int i = n; i < 0; i++) {
+                sb.append('0');
+            }
+            sb.append(digits);
+        } else {
+            sb.append(digits.charAt(0));
+            if (k > 1) {
+                sb.append('.').append(digits, 1, k);
+            }
+            sb.append('e').append(n - 1 >= 0 ? "+" : "-").append(Math.abs(n - 1));
+        }
+        return sb.toString();
+    }
+
+    private static String quote(String text) {
+        StringBuilder sb = new StringBuilder(text.length() + 2);
+        sb.append('"');
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '"': sb.append("\\\""); break;
+                case '\\': sb.append("\\\\"); break;
+                case '\b': sb.append("\\b"); break;
+                case '\f': sb.append("\\f"); break;
+                case '\n': sb.append("\\n"); break;
+                case '\r': sb.append("\\r"); break;
+                case '\t': sb.append("\\t"); break;
+                default:
+                    if (c < 0x20) {
+                        sb.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        sb.append(c);
+                    }
+            }
+        }
+        return sb.append('"').toString();
+    }
+
+    /**
+     * Minimal deterministic CBOR (RFC 8949 section 4.2) encoder for the values a ReadableMap can hold.
+     */
+    @SuppressWarnings("unchecked")
+    static void writeCbor(ByteArrayOutputStream out, Object value) {
+        if (value == null) {
+            out.write(0xf6);
+        } else if (value instanceof Boolean) {
+            out.write((Boolean) value ? 0xf5 : 0xf4);
+        } else if (value instanceof Number) {
+            double number = ((Number) value).doubleValue();
+            if (isSafeInteger(number)) {
+                long integer = (long) number;
+                if (integer >= 0) {
+                    writeCborHead(out, 0, integer);
+                } else {
+                    writeCborHead(out, 1, -1 - integer);
+                }
+            } else {
+                writeCborFloat(out, number);
+            }
+        } else if (value instanceof Map) {
+            // Deterministic key order: shorter encodings first, then bytewise
+            TreeMap<String, Object> sorted = new TreeMap<>(new Comparator<String>() {
+                @Override
+                public int compare(String a, String b) {
+                    byte[] x = a.getBytes(UTF_8);
+                    byte[] y = b.getBytes(UTF_8);
+                    if (x.length != y.length) return x.length - y.length;
+                    for (int i = 0; i < x.length; i++) {
+                        int diff = (x[i] & 0xff) - (y[i] & 0xff);
+                        if (diff != 0) return diff;
+                    }
+                    return 0;
+                }
+            });
+            sorted.putAll((Map<String, Object>) value);
+            writeCborHead(out, 5, sorted.size());
+            for (Map.Entry<String, Object> entry : sorted.entrySet()) {
+                writeCbor(out, entry.getKey());
+                writeCbor(out, entry.getValue());
+            }
+        } else if (value instanceof List) {
+            List<Object> list = (List<Object>) value;
+            writeCborHead(out, 4, list.size());
+            for (Object item : list) {
+                writeCbor(out, item);
+            }
+        } else {
+            byte[] bytes = value.toString().getBytes(UTF_8);
+            writeCborHead(out, 3, bytes.length);
+            out.write(bytes, 0, bytes.length);
+        }
+    }
+
+    /**
+     * Writes the shortest of half, single and double precision that holds the value exactly.
+     */
+    private static void writeCborFloat(ByteArrayOutputStream out, double number) {
+        int half = Double.isNaN(number) ? 0x7e00 : (float) number == number ? toHalf((float) number) : -1;
+        if (half >= 0) {
+            out.write(0xf9);
+            out.write(half >>> 8);
+            out.write(half & 0xff);
+        } else if ((float) number == number) {
+            int bits = Float.floatToIntBits((float) number);
+            out.write(0xfa);
+            for (int shift = 24; shift >= 0; shift -= 8) {
+                out.write(bits >>> shift & 0xff);
+            }
+        } else {
+            long bits = Double.doubleToLongBits(number);
+            out.write(0xfb);
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                out.write((int) (bits >>> shift) & 0xff);
+            }
+        }
+    }
+
+    // Half precision bits of the value, -1 if it isn't representable exactly
+    private static int toHalf(float value) {
+        int bits = Float.floatToIntBits(value);
+        int sign = bits >>> 16 & 0x8000;
+        int exponent = bits >>> 23 & 0xff;
+        int mantissa = bits & 0x7fffff;
+        if (exponent == 0xff) {
+            return sign | 0x7c00;
+        }
+        if (exponent == 0) {
+            return mantissa == 0 ? sign : -1;
+        }
+
+        int halfExponent = exponent - 127 + 15;
+        if (halfExponent >= 0x1f) {
+            return -1;
+        }
+        if (halfExponent > 0) {
+            return (mantissa & 0x1fff) == 0 ? sign | halfExponent << 10 | mantissa >>> 13 : -1;
+        }
+        // Subnormal half: value = m * 2^-24
+        int shift = 126 - exponent;
+        int significand = 0x800000 | mantissa;
+        if (shift > 24 || (significand & (1 << shift) - 1) != 0) {
+            return -1;
+        }
+        return sign | significand >>> shift;
+    }
+
+    private static void writeCborBytes(ByteArrayOutputStream out, byte[] bytes) {
+        writeCborHead(out, 2, bytes.length);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    private static void writeCborHead(ByteArrayOutputStream out, int majorType, long argument) {
+        int type = majorType << 5;
+        if (argument < 24) {
+            out.write(type | (int) argument);
+        } else if (argument < 0x100) {
+            out.write(type | 24);
+            out.write((int) argument);
+        } else if (argument < 0x10000) {
+            out.write(type | 25);
+            out.write((int) (argument >>> 8) & 0xff);
+            out.write((int) argument & 0xff);
+        } else if (argument < 0x100000000L) {
+            out.write(type | 26);
+            for (int shift = 24; shift >= 0; shift -= 8) {
+                out.write((int) (argument >>> shift) & 0xff);
+            }
+        } else {
+            out.write(type | 27);
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                out.write((int) (argument >>> shift) & 0xff);
+            }
+        }
+    }
+}
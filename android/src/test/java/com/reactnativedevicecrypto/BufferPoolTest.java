@@ -0,0 +1,63 @@
+package com.reactnativedevicecrypto;
+
+import org.junit.Test;
+import java.util.Arrays;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BufferPoolTest {
+
+    @Test
+    public void roundsUpToPowersOfTwo() {
+        assertEquals(256, BufferPool.acquire(0).length);
+        assertEquals(256, BufferPool.acquire(256).length);
+        assertEquals(512, BufferPool.acquire(257).length);
+        assertEquals(65536, BufferPool.acquire(65536).length);
+    }
+
+    @Test
+    public void allocatesLargeBuffersExactly() {
+        assertEquals(65537, BufferPool.acquire(65537).length);
+    }
+
+    @Test
+    public void zeroesReleasedBuffersBeforeReuse() {
+        byte[] buffer = BufferPool.acquire(1000);
+        Arrays.fill(buffer, (byte) 0x5a);
+        BufferPool.release(buffer);
+
+        assertTrue(isZero(buffer));
+        byte[] reused = BufferPool.acquire(1000);
+        assertTrue(reused == buffer);
+        assertTrue(isZero(reused));
+        BufferPool.release(reused);
+    }
+
+    @Test
+    public void zeroesBuffersItDoesNotKeep() {
+        byte[] large = BufferPool.acquire(100000);
+        byte[] foreign = new byte[300];
+        Arrays.fill(large, (byte) 1);
+        Arrays.fill(foreign, (byte) 1);
+        BufferPool.release(large);
+        BufferPool.release(foreign);
+
+        assertTrue(isZero(large));
+        assertTrue(isZero(foreign));
+        // Odd sized arrays are not handed out for a power of two bucket
+        assertFalse(BufferPool.acquire(300) == foreign);
+    }
+
+    @Test
+    public void ignoresNull() {
+        BufferPool.release(null);
+    }
+
+    private static boolean isZero(byte[] buffer) {
+        for (byte b : buffer) {
+            if (b != 0) return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,116 @@
+package com.reactnativedevicecrypto;
+
+import org.junit.Test;
+import java.util.Base64;
+import java.util.Random;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Codec against the JDK encoders, which match String.getBytes and android.util.Base64 NO_WRAP.
+ */
+public class CodecTest {
+
+    // UTF-8
+    // ______________________________________________
+    @Test
+    public void encodesEveryRangeLikeGetBytes() {
+        assertUtf8("");
+        assertUtf8("plain ascii");
+        assertUtf8("éß߿");
+        assertUtf8("ࠀ€￿");
+        assertUtf8("mixed é € 😀 text");
+    }
+
+    @Test
+    public void encodesNonBmpCharactersAsFourBytes() {
+        assertUtf8("😀");
+        assertUtf8("𐀀􏿿");
+        assertArrayEquals(new byte[]{(byte) 0xf0, (byte) 0x9f, (byte) 0x98, (byte) 0x80}, utf8("😀"));
+    }
+
+    @Test
+    public void replacesMalformedSurrogates() {
+        // Lone high, lone low, high at the end and a reversed pair
+        assertUtf8("a\ud83db");
+        assertUtf8("a\ude00b");
+        assertUtf8("end\ud83d");
+        assertUtf8("\ude00\ud83d");
+        assertArrayEquals(new byte[]{'?', '?'}, utf8("\ude00\ud83d"));
+    }
+
+    @Test
+    public void maxUtf8LengthFitsTheWorstCase() {
+        String text = "￿😀ࠀ";
+        assertTrue(text.getBytes(UTF_8).length <= Codec.maxUtf8Length(text));
+    }
+
+    // BASE64
+    // ______________________________________________
+    @Test
+    public void roundTripsEveryLengthInBothAlphabets() {
+        Random random = new Random(42);
+        for (int length = 0; length <= 300; length++) {
+            byte[] data = new byte[length];
+            random.nextBytes(data);
+
+            String standard = Codec.encodeToString(data, Codec.BASE64);
+            assertEquals(Base64.getEncoder().encodeToString(data), standard);
+            assertEquals(standard.length(), Codec.encodedLength(length, Codec.BASE64));
+            assertArrayEquals(data, Codec.decode(standard));
+
+            String url = Codec.encodeToString(data, Codec.BASE64URL);
+            assertEquals(Base64.getUrlEncoder().withoutPadding().encodeToString(data), url);
+            assertEquals(url.length(), Codec.encodedLength(length, Codec.BASE64URL));
+            assertArrayEquals(data, Codec.decode(url));
+        }
+    }
+
+    @Test
+    public void encodesARange() {
+        byte[] data = "xxfoobarxx".getBytes(UTF_8);
+        assertEquals("Zm9vYmFy", Codec.encodeToString(data, 2, 6, Codec.BASE64));
+    }
+
+    @Test
+    public void decodesWithAndWithoutPadding() {
+        assertArrayEquals("f".getBytes(UTF_8), Codec.decode("Zg=="));
+        assertArrayEquals("f".getBytes(UTF_8), Codec.decode("Zg"));
+        assertArrayEquals("fo".getBytes(UTF_8), Codec.decode("Zm8="));
+        assertArrayEquals("fo".getBytes(UTF_8), Codec.decode("Zm8"));
+        assertArrayEquals("foo".getBytes(UTF_8), Codec.decode("Zm9v"));
+        assertArrayEquals(new byte[0], Codec.decode(""));
+    }
+
+    @Test
+    public void skipsLineBreaks() {
+        assertArrayEquals("foobar".getBytes(UTF_8), Codec.decode("Zm9v\r\nYmFy\n"));
+    }
+
+    @Test
+    public void decodesIntoTheGivenBuffer() {
+        byte[] out = new byte[Codec.maxDecodedLength("Zm9vYg==")];
+        assertEquals(4, Codec.decode("Zm9vYg==", out));
+        assertArrayEquals("foob".getBytes(UTF_8), java.util.Arrays.copyOf(out, 4));
+    }
+
+    @Test
+    public void rejectsMalformedInput() {
+        assertThrows(IllegalArgumentException.class, () -> Codec.decode("Z"));
+        assertThrows(IllegalArgumentException.class, () -> Codec.decode("Zm9vY"));
+        assertThrows(IllegalArgumentException.class, () -> Codec.decode("Zm9v*"));
+        assertThrows(IllegalArgumentException.class, () -> Codec.decode("Zmév"));
+    }
+
+    private static byte[] utf8(String text) {
+        byte[] out = new byte[Codec.maxUtf8Length(text)];
+        return java.util.Arrays.copyOf(out, Codec.encodeUtf8(text, out));
+    }
+
+    private static void assertUtf8(String text) {
+        assertArrayEquals(text.getBytes(UTF_8), utf8(text));
+    }
+}
@@ -0,0 +1,693 @@
+package com.reactnativedevicecrypto;
+
+import android.security.keystore.KeyPermanentlyInvalidatedException;
+import android.security.keystore.UserNotAuthenticatedException;
+import com.facebook.react.bridge.Promise;
+import com.facebook.react.bridge.ReadableMap;
+import org.junit.Test;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.security.AlgorithmParameters;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.Key;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.ProviderException;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.security.Signature;
+import java.security.SignatureException;
+import java.security.spec.AlgorithmParameterSpec;
+import java.security.spec.ECGenParameterSpec;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.CipherSpi;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.GCMParameterSpec;
+import static com.reactnativedevicecrypto.Authenticator.Cryptography.DECRYPT;
+import static com.reactnativedevicecrypto.Authenticator.Cryptography.ENCRYPT;
+import static com.reactnativedevicecrypto.Authenticator.Cryptography.SIGN;
+import static com.reactnativedevicecrypto.Constants.E_CANCELLED;
+import static com.reactnativedevicecrypto.Constants.E_ERROR;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Stress harness for the concurrency core behind DeviceCryptoModule. It runs the body of the module's
+ * sign/encrypt/decrypt methods (DeviceCryptoModule.runCryptography) from many threads, the way concurrent
+ * bridge calls reach it: in-flight tracking, keystore operation slots and the pooled byte core.
+ *
+ * Some keys require authentication. Their prompt is answered or dismissed by a fake user on another
+ * thread while the slot is parked, and may be cancelled meanwhile. Time bound keys refuse to initialize
+ * until the user has answered. A few calls come with a missing or duplicate operation id.
+ *
+ * AndroidKeyStore is replaced by a software stand-in (JDK EC/AES keys) that injects faults: fixed
+ * and random latency, slow operations, KeyPermanentlyInvalidatedException and "too many operations",
+ * both at random and whenever more operations are open than the keystore allows.
+ *
+ * Prints throughput by thread count and tail latencies. Fails if anything is left behind: slots,
+ * parked slots, queued tasks, in-flight entries, open keystore operations, unsettled promises or
+ * threads, or if a bad operation id is accepted.
+ *
+ * It takes minutes, so it only runs when asked for:
+ * ./gradlew testDebugUnitTest --tests '*ConcurrencyStressHarness*' -Dstress=true -i
+ */
+public class ConcurrencyStressHarness {
+    private static final int[] THREAD_COUNTS = {1, 2, 4, 8, 16, 32};
+    private static final int OPERATIONS_PER_THREAD = 200;
+    // Keystore starts refusing (or pruning) operations beyond this many per app
+    private static final int KEYSTORE_OPERATION_LIMIT = 15;
+    private static final int MAX_SLOT_WORKERS = 8;
+    private static final long SETTLE_TIMEOUT_MS = 10000;
+    private static final String PLAIN_TEXT = "{\"sub\":\"stress\",\"nonce\":\"0123456789abcdef\",\"text\":\"çöü🔑\"}";
+
+    private static class Faults {
+        final String name;
+        // Binder + TEE round trip of every operation init
+        final int baseLatencyMs;
+        final int maxJitterMs;
+        final double slowRate;
+        final int slowMs;
+        final double invalidatedRate;
+        final double tooManyRate;
+        final double cancelRate;
+        final double promptRate;
+        final double dismissRate;
+        // How long the user takes to answer the prompt
+        final int maxPromptMs;
+        final double badIdRate;
+
+        Faults(String name, int baseLatencyMs, int maxJitterMs, double slowRate, int slowMs, double invalidatedRate, double tooManyRate, double cancelRate,
+               double promptRate, double dismissRate, int maxPromptMs, double badIdRate) {
+            this.name = name;
+            this.baseLatencyMs = baseLatencyMs;
+            this.maxJitterMs = maxJitterMs;
+            this.slowRate = slowRate;
+            this.slowMs = slowMs;
+            this.invalidatedRate = invalidatedRate;
+            this.tooManyRate = tooManyRate;
+            this.cancelRate = cancelRate;
+            this.promptRate = promptRate;
+            this.dismissRate = dismissRate;
+            this.maxPromptMs = maxPromptMs;
+            this.badIdRate = badIdRate;
+        }
+    }
+
+    // Encrypt always prompts, see call
+    private static final Faults BASELINE = new Faults("baseline", 2, 0, 0, 0, 0, 0, 0, 0, 0, 5, 0);
+    private static final Faults FAULTY = new Faults("faults", 2, 3, 0.02, 40, 0.01, 0.03, 0.02, 0.2, 0.1, 20, 0.02);
+
+    @Test
+    public void stress() throws Exception {
+        assumeTrue("Run with -Dstress=true", Boolean.getBoolean("stress"));
+        run(4, FAULTY, 100);
+        // The retry scheduler and pooled buffers are created once per process
+        Set<Thread> threadsBefore = new HashSet<>(Thread.getAllStackTraces().keySet());
+
+        List<Report> reports = new ArrayList<>();
+        System.out.println(Report.HEADER);
+        for (Faults faults : new Faults[]{BASELINE, FAULTY}) {
+            for (int threads : THREAD_COUNTS) {
+                Report report = run(threads, faults, OPERATIONS_PER_THREAD);
+                System.out.println(report);
+                reports.add(report);
+            }
+        }
+
+        List<String> leakedThreads = getLeakedThreads(threadsBefore);
+        System.out.println("Leaked threads: " + leakedThreads);
+
+        for (Report report : reports) {
+            assertEquals(report.name + " unsettled promises", 0, report.unsettled.get());
+            assertEquals(report.name + " settled twice", 0, report.doubleSettled.get());
+            assertEquals(report.name + " accepted bad operation ids", 0, report.acceptedBadIds.get());
+            assertEquals(report.name + " leaked in-flight entries", 0, report.leakedEntries);
+            assertEquals(report.name + " leaked keystore operations", 0, report.leakedKeystoreOperations);
+            assertTrue(report.name + " exceeded keystore limit", report.peakKeystoreOperations <= KEYSTORE_OPERATION_LIMIT);
+        }
+        assertEquals("open slots", 0, OperationSlots.getOpenOperations());
+        assertEquals("parked slots", 0, OperationSlots.getParkedOperations());
+        assertEquals("pending tasks", 0, OperationSlots.getPendingOperations());
+        assertEquals("leaked threads", 0, leakedThreads.size());
+    }
+
+    private Report run(int threads, Faults faults, int operationsPerThread) throws Exception {
+        SoftwareKeystore keystore = new SoftwareKeystore(faults);
+        InFlightOperations operations = new InFlightOperations();
+        Report report = new Report(faults.name, threads, threads * operationsPerThread);
+        // The fake user answering prompts
+        ScheduledExecutorService user = Executors.newScheduledThreadPool(2);
+
+        ExecutorService callers = Executors.newFixedThreadPool(threads);
+        long start = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            final long seed = 31L * threads + t;
+            callers.execute(() -> {
+                Random random = new Random(seed);
+                for (int i = 0; i < operationsPerThread; i++) {
+                    call(random, faults, keystore, operations, user, report);
+                }
+            });
+        }
+        callers.shutdown();
+        if (!callers.awaitTermination(5, TimeUnit.MINUTES)) {
+            throw new AssertionError(faults.name + " x" + threads + " did not finish");
+        }
+        report.elapsedNanos = System.nanoTime() - start;
+        // Only cancels of operations settled meanwhile are left
+        user.shutdown();
+        if (!user.awaitTermination(5, TimeUnit.SECONDS)) {
+            throw new AssertionError(faults.name + " x" + threads + " prompts did not finish");
+        }
+
+        // Aborted operations are finalized after their promise settles, give the last ones a moment
+        long deadline = System.currentTimeMillis() + 1000;
+        while ((OperationSlots.getOpenOperations() > 0 || OperationSlots.getParkedOperations() > 0 || keystore.openOperations.get() > 0) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        report.leakedEntries = operations.size();
+        report.leakedSlots = OperationSlots.getOpenOperations() + OperationSlots.getParkedOperations() + OperationSlots.getPendingOperations();
+        report.leakedKeystoreOperations = keystore.openOperations.get();
+        report.peakKeystoreOperations = keystore.peakOperations.get();
+        report.injected = keystore.injected;
+        return report;
+    }
+
+    // Same as DeviceCryptoModule.sign/encrypt/decrypt. Encrypt resolves to a native map which cannot be
+    // created on the JVM, so it always takes the prompt, which finishes the cipher without packaging the map.
+    private void call(Random random, Faults faults, SoftwareKeystore keystore, InFlightOperations operations, ScheduledExecutorService user, Report report) {
+        int kind = random.nextInt(3);
+        int cryptographyType = kind == 0 ? SIGN : kind == 1 ? DECRYPT : ENCRYPT;
+        boolean restricted = cryptographyType == ENCRYPT || random.nextDouble() < faults.promptRate;
+        boolean timeBound = restricted && cryptographyType != ENCRYPT && random.nextBoolean();
+        boolean dismissed = restricted && random.nextDouble() < faults.dismissRate;
+        long promptDelay = random.nextInt(faults.maxPromptMs + 1);
+
+        RecordingPromise promise = new RecordingPromise();
+        long start = System.nanoTime();
+        InFlightOperations.Entry operation = operations.register(options(UUID.randomUUID().toString()), promise.promise);
+        if (random.nextDouble() < faults.badIdRate) {
+            callWithBadId(operations, operation.getId(), report);
+            callWithBadId(operations, null, report);
+        }
+
+        AtomicBoolean authenticated = new AtomicBoolean(!timeBound);
+        AtomicReference<Object> engine = new AtomicReference<>();
+        OperationSlots.execute(operation, DeviceCryptoModule.runCryptography(
+                cryptographyType,
+                operation,
+                () -> cryptographyType == DECRYPT ? keystore.encryptedText : PLAIN_TEXT,
+                () -> {
+                    if (!authenticated.get()) {
+                        throw new UserNotAuthenticatedException();
+                    }
+                    engine.set(cryptographyType == SIGN ? keystore.initializeSignature()
+                            : cryptographyType == DECRYPT ? keystore.initializeDecrypter() : keystore.initializeEncrypter());
+                    return engine.get();
+                },
+                () -> !restricted,
+                (data, cryptoObject, cryptography) -> {
+                    report.prompted.incrementAndGet();
+                    user.schedule(() -> answer(cryptographyType, operation, data, engine, cryptography, authenticated, dismissed, report), promptDelay, TimeUnit.MILLISECONDS);
+                },
+                report.invalidations::incrementAndGet));
+
+        if (random.nextDouble() < faults.cancelRate) {
+            operations.cancel(operation.getId());
+        } else if (restricted && random.nextDouble() < faults.cancelRate) {
+            // Most likely while the prompt is shown
+            user.schedule(() -> operations.cancel(operation.getId()), random.nextInt(faults.maxPromptMs + 1), TimeUnit.MILLISECONDS);
+        }
+
+        if (!promise.await(SETTLE_TIMEOUT_MS)) {
+            report.unsettled.incrementAndGet();
+            return;
+        }
+        report.record(System.nanoTime() - start, promise.code);
+        if (promise.settlements.get() > 1) {
+            report.doubleSettled.incrementAndGet();
+        }
+    }
+
+    // Same as the success and error callbacks of Authenticator's prompt
+    private static void answer(int cryptographyType, InFlightOperations.Entry operation, Object data, AtomicReference<Object> engine,
+                               Authenticator.Deferred cryptography, AtomicBoolean authenticated, boolean dismissed, Report report) {
+        if (dismissed) {
+            operation.reject("10- Authentication canceled by user.");
+            return;
+        }
+        authenticated.set(true);
+        if (!operation.claim()) {
+            return;
+        }
+        try {
+            Object response;
+            if (cryptography != null) {
+                response = cryptography.run();
+            } else if (cryptographyType == ENCRYPT) {
+                response = Helpers.encryptToBase64((String) data, (Cipher) engine.get());
+            } else {
+                response = Authenticator.finish(cryptographyType, data, engine.get());
+            }
+            operation.resolve(response);
+        } catch (Exception e) {
+            if (e instanceof KeyPermanentlyInvalidatedException) {
+                report.invalidations.incrementAndGet();
+            }
+            operation.reject(Helpers.getError(e));
+        }
+    }
+
+    // The module registers before anything else, a bad id must be rejected right away and never reach a slot
+    private static void callWithBadId(InFlightOperations operations, String id, Report report) {
+        RecordingPromise promise = new RecordingPromise();
+        InFlightOperations.Entry operation = operations.register(options(id), promise.promise);
+        OperationSlots.execute(operation, slot -> report.acceptedBadIds.incrementAndGet());
+        if (promise.settlements.get() != 1 || !E_ERROR.equals(promise.code)) {
+            report.acceptedBadIds.incrementAndGet();
+        }
+    }
+
+    // Bridge options carrying only the operation id, which may be missing
+    private static ReadableMap options(String operationId) {
+        return (ReadableMap) Proxy.newProxyInstance(ReadableMap.class.getClassLoader(), new Class[]{ReadableMap.class}, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "hasKey":
+                    return operationId != null && "operationId".equals(args[0]);
+                case "isNull":
+                    return operationId == null || !"operationId".equals(args[0]);
+                case "getString":
+                    return "operationId".equals(args[0]) ? operationId : null;
+                default:
+                    throw new UnsupportedOperationException(method.getName());
+            }
+        });
+    }
+
+    // Slot workers idle out after a while, they count as leaked only beyond one per slot
+    private static List<String> getLeakedThreads(Set<Thread> before) throws InterruptedException {
+        Thread.sleep(200);
+        List<String> leaked = new ArrayList<>();
+        List<String> workers = new ArrayList<>();
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (!thread.isAlive()) continue;
+            if (thread.getName().startsWith(OperationSlots.WORKER_NAME)) {
+                workers.add(thread.getName());
+            } else if (!before.contains(thread)) {
+                leaked.add(thread.getName());
+            }
+        }
+        if (workers.size() > MAX_SLOT_WORKERS) {
+            leaked.addAll(workers);
+        }
+        return leaked;
+    }
+
+    // PROMISE
+    // ______________________________________________
+    private static class RecordingPromise implements InvocationHandler {
+        final CountDownLatch settled = new CountDownLatch(1);
+        final AtomicInteger settlements = new AtomicInteger();
+        final Promise promise = (Promise) Proxy.newProxyInstance(Promise.class.getClassLoader(), new Class[]{Promise.class}, this);
+        volatile String code;
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            if (method.getDeclaringClass() == Object.class) {
+                switch (method.getName()) {
+                    case "equals":
+                        return proxy == args[0];
+                    case "hashCode":
+                        return System.identityHashCode(proxy);
+                    default:
+                        return "RecordingPromise";
+                }
+            }
+
+            if (settlements.incrementAndGet() == 1) {
+                if (method.getName().equals("reject")) {
+                    code = args.length > 1 && args[0] instanceof String ? (String) args[0] : E_ERROR;
+                }
+                settled.countDown();
+            }
+            return null;
+        }
+
+        boolean await(long timeoutMs) {
+            try {
+                return settled.await(timeoutMs, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+    }
+
+    // REPORT
+    // ______________________________________________
+    private static class Report {
+        static final String HEADER = String.format("%-9s %7s %6s %9s %8s %8s %8s %8s %8s %8s %9s %7s %8s %5s %6s",
+                "scenario", "threads", "ops", "ops/s", "p50 ms", "p99 ms", "p999 ms", "max ms",
+                "resolved", "rejected", "cancelled", "prompts", "injected", "peak", "leaks");
+
+        final String name;
+        final int threads;
+        final long[] latencies;
+        final AtomicInteger count = new AtomicInteger();
+        final AtomicInteger resolved = new AtomicInteger();
+        final AtomicInteger rejected = new AtomicInteger();
+        final AtomicInteger cancelled = new AtomicInteger();
+        final AtomicInteger invalidations = new AtomicInteger();
+        final AtomicInteger prompted = new AtomicInteger();
+        final AtomicInteger acceptedBadIds = new AtomicInteger();
+        final AtomicInteger unsettled = new AtomicInteger();
+        final AtomicInteger doubleSettled = new AtomicInteger();
+        long elapsedNanos;
+        int leakedEntries;
+        int leakedSlots;
+        int leakedKeystoreOperations;
+        int peakKeystoreOperations;
+        ConcurrentHashMap<String, AtomicInteger> injected;
+
+        Report(String name, int threads, int operations) {
+            this.name = name;
+            this.threads = threads;
+            this.latencies = new long[operations];
+        }
+
+        void record(long latencyNanos, String code) {
+            latencies[count.getAndIncrement()] = latencyNanos;
+            if (code == null) {
+                resolved.incrementAndGet();
+            } else if (code.equals(E_CANCELLED)) {
+                cancelled.incrementAndGet();
+            } else {
+                rejected.incrementAndGet();
+            }
+        }
+
+        private double percentile(long[] sorted, double p) {
+            if (sorted.length == 0) return 0;
+            int index = (int) Math.min(sorted.length - 1, Math.ceil(p * sorted.length) - 1);
+            return sorted[Math.max(index, 0)] / 1e6;
+        }
+
+        @Override
+        public String toString() {
+            long[] sorted = Arrays.copyOf(latencies, count.get());
+            Arrays.sort(sorted);
+            int injectedTotal = 0;
+            for (AtomicInteger value : injected.values()) {
+                injectedTotal += value.get();
+            }
+            int leaks = leakedEntries + leakedSlots + leakedKeystoreOperations + unsettled.get();
+            return String.format("%-9s %7d %6d %9.0f %8.2f %8.2f %8.2f %8.2f %8d %8d %9d %7d %8d %5d %6d",
+                    name, threads, count.get(), count.get() / (elapsedNanos / 1e9),
+                    percentile(sorted, 0.5), percentile(sorted, 0.99), percentile(sorted, 0.999), percentile(sorted, 1),
+                    resolved.get(), rejected.get(), cancelled.get(), prompted.get(), injectedTotal, peakKeystoreOperations, leaks)
+                    + (injected.isEmpty() ? "" : "  " + injected);
+        }
+    }
+
+    // SOFTWARE KEYSTORE
+    // ______________________________________________
+    /**
+     * Stands in for AndroidKeyStore: every initialized engine is an open keystore operation until it's
+     * finalized, faults are injected when an operation is started.
+     */
+    private static class SoftwareKeystore {
+        private static final java.security.Provider PROVIDER = new java.security.Provider("SoftwareKeystore", "1.0", "Stress harness") {};
+        final Faults faults;
+        final PrivateKey privateKey;
+        final SecretKey secretKey;
+        final byte[] iv = new byte[12];
+        final String encryptedText;
+        final AtomicInteger openOperations = new AtomicInteger();
+        final AtomicInteger peakOperations = new AtomicInteger();
+        final ConcurrentHashMap<String, AtomicInteger> injected = new ConcurrentHashMap<>();
+
+        SoftwareKeystore(Faults faults) throws Exception {
+            this.faults = faults;
+            KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("EC");
+            keyPairGenerator.initialize(new ECGenParameterSpec("secp256r1"));
+            this.privateKey = keyPairGenerator.generateKeyPair().getPrivate();
+            KeyGenerator keyGenerator = KeyGenerator.getInstance("AES");
+            keyGenerator.init(256);
+            this.secretKey = keyGenerator.generateKey();
+
+            new SecureRandom().nextBytes(iv);
+            Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+            cipher.init(Cipher.ENCRYPT_MODE, secretKey, new GCMParameterSpec(128, iv));
+            this.encryptedText = Codec.encodeToString(cipher.doFinal(PLAIN_TEXT.getBytes(StandardCharsets.UTF_8)), Codec.BASE64);
+        }
+
+        Signature initializeSignature() throws Exception {
+            begin();
+            Signature signature = new CountingSignature(this);
+            signature.initSign(privateKey);
+            return signature;
+        }
+
+        Cipher initializeDecrypter() throws Exception {
+            begin();
+            Cipher cipher = new Cipher(new CountingCipherSpi(this), PROVIDER, "AES/GCM/NoPadding") {};
+            cipher.init(Cipher.DECRYPT_MODE, secretKey, new GCMParameterSpec(128, iv));
+            return cipher;
+        }
+
+        // Random IV like the keystore's randomized encryption
+        Cipher initializeEncrypter() throws Exception {
+            begin();
+            Cipher cipher = new Cipher(new CountingCipherSpi(this), PROVIDER, "AES/GCM/NoPadding") {};
+            cipher.init(Cipher.ENCRYPT_MODE, secretKey);
+            return cipher;
+        }
+
+        private void begin() throws Exception {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            if (openOperations.get() >= KEYSTORE_OPERATION_LIMIT) {
+                inject("limit");
+                throw new ProviderException("Keystore operation failed: TOO_MANY_OPERATIONS");
+            }
+            if (random.nextDouble() < faults.tooManyRate) {
+                inject("tooMany");
+                throw new ProviderException("Keystore operation failed: Too many operations");
+            }
+            if (random.nextDouble() < faults.invalidatedRate) {
+                inject("invalidated");
+                throw new KeyPermanentlyInvalidatedException();
+            }
+
+            long latency = faults.baseLatencyMs + (faults.maxJitterMs > 0 ? random.nextInt(faults.maxJitterMs + 1) : 0);
+            if (random.nextDouble() < faults.slowRate) {
+                inject("slow");
+                latency += faults.slowMs;
+            }
+            if (latency > 0) {
+                Thread.sleep(latency);
+            }
+        }
+
+        private void inject(String fault) {
+            injected.computeIfAbsent(fault, key -> new AtomicInteger()).incrementAndGet();
+        }
+
+        void opened() {
+            int open = openOperations.incrementAndGet();
+            peakOperations.accumulateAndGet(open, Math::max);
+        }
+
+        void closed() {
+            openOperations.decrementAndGet();
+        }
+    }
+
+    private static class CountingSignature extends Signature {
+        private final SoftwareKeystore keystore;
+        private final Signature delegate;
+        private boolean open;
+
+        CountingSignature(SoftwareKeystore keystore) throws Exception {
+            super("SHA256withECDSA");
+            this.keystore = keystore;
+            this.delegate = Signature.getInstance("SHA256withECDSA");
+        }
+
+        @Override
+        protected synchronized void engineInitSign(PrivateKey privateKey) throws InvalidKeyException {
+            delegate.initSign(privateKey);
+            if (!open) {
+                open = true;
+                keystore.opened();
+            }
+        }
+
+        @Override
+        protected void engineInitVerify(PublicKey publicKey) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        protected void engineUpdate(byte b) throws SignatureException {
+            delegate.update(b);
+        }
+
+        @Override
+        protected void engineUpdate(byte[] bytes, int offset, int length) throws SignatureException {
+            delegate.update(bytes, offset, length);
+        }
+
+        @Override
+        protected synchronized byte[] engineSign() throws SignatureException {
+            try {
+                return delegate.sign();
+            } finally {
+                if (open) {
+                    open = false;
+                    keystore.closed();
+                }
+            }
+        }
+
+        @Override
+        protected boolean engineVerify(byte[] signature) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        @SuppressWarnings("deprecation")
+        protected void engineSetParameter(String param, Object value) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        @SuppressWarnings("deprecation")
+        protected Object engineGetParameter(String param) {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    private static class CountingCipherSpi extends CipherSpi {
+        private final SoftwareKeystore keystore;
+        private final Cipher delegate;
+        private boolean open;
+
+        CountingCipherSpi(SoftwareKeystore keystore) throws Exception {
+            this.keystore = keystore;
+            this.delegate = Cipher.getInstance("AES/GCM/NoPadding");
+        }
+
+        private synchronized void opened() {
+            if (!open) {
+                open = true;
+                keystore.opened();
+            }
+        }
+
+        private synchronized void closed() {
+            if (open) {
+                open = false;
+                keystore.closed();
+            }
+        }
+
+        @Override
+        protected void engineSetMode(String mode) {
+        }
+
+        @Override
+        protected void engineSetPadding(String padding) {
+        }
+
+        @Override
+        protected int engineGetBlockSize() {
+            return 16;
+        }
+
+        @Override
+        protected int engineGetOutputSize(int length) {
+            return delegate.getOutputSize(length);
+        }
+
+        @Override
+        protected byte[] engineGetIV() {
+            return delegate.getIV();
+        }
+
+        @Override
+        protected AlgorithmParameters engineGetParameters() {
+            return delegate.getParameters();
+        }
+
+        @Override
+        protected void engineInit(int mode, Key key, SecureRandom random) throws InvalidKeyException {
+            delegate.init(mode, key, random);
+            opened();
+        }
+
+        @Override
+        protected void engineInit(int mode, Key key, AlgorithmParameterSpec params, SecureRandom random) throws InvalidKeyException, InvalidAlgorithmParameterException {
+            delegate.init(mode, key, params, random);
+            opened();
+        }
+
+        @Override
+        protected void engineInit(int mode, Key key, AlgorithmParameters params, SecureRandom random) throws InvalidKeyException, InvalidAlgorithmParameterException {
+            delegate.init(mode, key, params, random);
+            opened();
+        }
+
+        @Override
+        protected byte[] engineUpdate(byte[] input, int offset, int length) {
+            return delegate.update(input, offset, length);
+        }
+
+        @Override
+        protected int engineUpdate(byte[] input, int offset, int length, byte[] output, int outputOffset) throws ShortBufferException {
+            return delegate.update(input, offset, length, output, outputOffset);
+        }
+
+        @Override
+        protected byte[] engineDoFinal(byte[] input, int offset, int length) throws IllegalBlockSizeException, BadPaddingException {
+            try {
+                return input == null ? delegate.doFinal() : delegate.doFinal(input, offset, length);
+            } finally {
+                closed();
+            }
+        }
+
+        @Override
+        protected int engineDoFinal(byte[] input, int offset, int length, byte[] output, int outputOffset) throws ShortBufferException, IllegalBlockSizeException, BadPaddingException {
+            try {
+                return delegate.doFinal(input, offset, length, output, outputOffset);
+            } finally {
+                closed();
+            }
+        }
+    }
+}
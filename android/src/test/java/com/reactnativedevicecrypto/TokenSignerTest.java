@@ -0,0 +1,320 @@
+package com.reactnativedevicecrypto;
+
+import org.junit.Test;
+import java.io.ByteArrayOutputStream;
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Signature;
+import java.security.spec.ECGenParameterSpec;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Known answers for the token encoders: DER to JOSE signatures, canonical JSON matching
+ * JSON.stringify and deterministic CBOR (RFC 8949 appendix A).
+ */
+public class TokenSignerTest {
+
+    // derToJose
+    // ______________________________________________
+    @Test
+    public void derToJoseCopiesFullLengthIntegers() throws Exception {
+        byte[] r = filled(32, 0x11);
+        byte[] s = filled(32, 0x22);
+        assertArrayEquals(concat(r, s), TokenSigner.derToJose(der(integer(r), integer(s))));
+    }
+
+    @Test
+    public void derToJoseStripsSignPadding() throws Exception {
+        // High bit set, DER prepends a zero byte to keep the integer positive
+        byte[] r = filled(32, 0xff);
+        byte[] s = filled(32, 0x80);
+        byte[] der = der(integer(concat(new byte[1], r)), integer(concat(new byte[1], s)));
+        assertEquals(0x46, der[1]);
+        assertArrayEquals(concat(r, s), TokenSigner.derToJose(der));
+    }
+
+    @Test
+    public void derToJoseLeftPadsShortIntegers() throws Exception {
+        byte[] r = filled(31, 0x7f);
+        byte[] s = {0x05};
+        byte[] expected = new byte[64];
+        System.arraycopy(r, 0, expected, 1, 31);
+        expected[63] = 0x05;
+        assertArrayEquals(expected, TokenSigner.derToJose(der(integer(r), integer(s))));
+    }
+
+    @Test
+    public void derToJoseMixesPaddedAndShortIntegers() throws Exception {
+        byte[] r = filled(32, 0x90);
+        byte[] s = filled(30, 0x01);
+        byte[] expected = new byte[64];
+        System.arraycopy(r, 0, expected, 0, 32);
+        System.arraycopy(s, 0, expected, 34, 30);
+        assertArrayEquals(expected, TokenSigner.derToJose(der(integer(concat(new byte[1], r)), integer(s))));
+    }
+
+    @Test
+    public void derToJoseRejectsMalformedSignatures() {
+        assertThrows(Exception.class, () -> TokenSigner.derToJose(new byte[]{0x31, 0x06, 0x02, 0x01, 0x01, 0x02, 0x01, 0x01}));
+        assertThrows(Exception.class, () -> TokenSigner.derToJose(new byte[]{0x30, 0x06, 0x03, 0x01, 0x01, 0x02, 0x01, 0x01}));
+        assertThrows(Exception.class, () -> TokenSigner.derToJose(new byte[4]));
+        // 33 significant bytes can't be a P-256 coordinate
+        assertThrows(Exception.class, () -> TokenSigner.derToJose(der(integer(filled(33, 0x01)), integer(new byte[]{1}))));
+    }
+
+    @Test
+    public void derToJoseMatchesTheJdkSignature() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+        generator.initialize(new ECGenParameterSpec("secp256r1"));
+        KeyPair keyPair = generator.generateKeyPair();
+        for (int i = 0; i < 50; i++) {
+            byte[] message = ("message " + i).getBytes();
+            Signature signer = Signature.getInstance("SHA256withECDSA");
+            signer.initSign(keyPair.getPrivate());
+            signer.update(message);
+            byte[] raw = TokenSigner.derToJose(signer.sign());
+
+            Signature verifier = Signature.getInstance("SHA256withECDSA");
+            verifier.initVerify(keyPair.getPublic());
+            verifier.update(message);
+            assertTrue("signature " + i, verifier.verify(joseToDer(raw)));
+        }
+    }
+
+    // Canonical JSON
+    // ______________________________________________
+    @Test
+    public void canonicalJsonSortsKeysWithoutWhitespace() {
+        Map<String, Object> nested = new HashMap<>();
+        nested.put("z", true);
+        nested.put("a", null);
+        Map<String, Object> claims = new HashMap<>();
+        claims.put("sub", "user");
+        claims.put("aud", Arrays.asList("x", 1.0, false));
+        claims.put("ctx", nested);
+        claims.put("B", "upper sorts first");
+        assertEquals("{\"B\":\"upper sorts first\",\"aud\":[\"x\",1,false],\"ctx\":{\"a\":null,\"z\":true},\"sub\":\"user\"}",
+            TokenSigner.toCanonicalJson(claims));
+    }
+
+    @Test
+    public void canonicalJsonEscapesLikeJsonStringify() {
+        assertEquals("\"q\\\" b\\\\ \\b\\f\\n\\r\\t \\u0001\\u001f / é 🔑\"",
+            TokenSigner.toCanonicalJson("q\" b\\ \b\f\n\r\t \u0001\u001f / é 🔑"));
+    }
+
+    @Test
+    public void canonicalJsonFormatsNumbersLikeJsonStringify() {
+        // Expected values are JSON.stringify(n) in a JS engine
+        Object[][] vectors = {
+            {0.0, "0"},
+            {-0.0, "0"},
+            {1.0, "1"},
+            {-42.0, "-42"},
+            {1.5, "1.5"},
+            {0.1, "0.1"},
+            {-0.25, "-0.25"},
+            {1.0 / 3, "0.3333333333333333"},
+            {123.456, "123.456"},
+            {1e15, "1000000000000000"},
+            {1e15 + 0.5, "1000000000000000.5"},
+            {9007199254740991.0, "9007199254740991"},
+            {-9007199254740991.0, "-9007199254740991"},
+            {9007199254740992.0, "9007199254740992"},
+            {9007199254740993.0, "9007199254740992"},
+            {Math.pow(2, 60), "1152921504606847000"},
+            {1e20, "100000000000000000000"},
+            {1.2345678901234568e20, "123456789012345680000"},
+            {1e21, "1e+21"},
+            {1.5e300, "1.5e+300"},
+            {Double.MAX_VALUE, "1.7976931348623157e+308"},
+            {0.000001, "0.000001"},
+            {0.0000012, "0.0000012"},
+            {1e-7, "1e-7"},
+            {-1.5e-9, "-1.5e-9"},
+            {Double.MIN_VALUE, "5e-324"},
+            {Double.NaN, "null"},
+            {Double.POSITIVE_INFINITY, "null"},
+            {Double.NEGATIVE_INFINITY, "null"},
+        };
+        for (Object[] vector : vectors) {
+            assertEquals(String.valueOf(vector[0]), vector[1], TokenSigner.toCanonicalJson(vector[0]));
+        }
+    }
+
+    // Deterministic CBOR
+    // ______________________________________________
+    @Test
+    public void cborEncodesRfc8949Integers() {
+        // Numbers arrive from the bridge as doubles
+        assertCbor("00", 0.0);
+        assertCbor("01", 1.0);
+        assertCbor("17", 23.0);
+        assertCbor("1818", 24.0);
+        assertCbor("1864", 100.0);
+        assertCbor("1903e8", 1000.0);
+        assertCbor("1a000f4240", 1000000.0);
+        assertCbor("1b000000e8d4a51000", 1000000000000.0);
+        assertCbor("20", -1.0);
+        assertCbor("29", -10.0);
+        assertCbor("3863", -100.0);
+        assertCbor("3903e7", -1000.0);
+        assertCbor("00", -0.0);
+        assertCbor("1b001fffffffffffff", 9007199254740991.0);
+        assertCbor("3b001ffffffffffffe", -9007199254740991.0);
+    }
+
+    @Test
+    public void cborEncodesFloatsInTheirShortestForm() {
+        assertCbor("f93e00", 1.5);
+        assertCbor("f93c01", 1.0009765625);
+        assertCbor("f90001", 5.960464477539063e-8);
+        assertCbor("f90400", 0.00006103515625);
+        assertCbor("f9b800", -0.5);
+        assertCbor("fa47c35040", 100000.5);
+        assertCbor("fa7f7fffff", 3.4028234663852886e+38);
+        assertCbor("fb3ff199999999999a", 1.1);
+        assertCbor("fb7e37e43c8800759c", 1.0e+300);
+        assertCbor("fbc010666666666666", -4.1);
+        assertCbor("f97c00", Double.POSITIVE_INFINITY);
+        assertCbor("f9fc00", Double.NEGATIVE_INFINITY);
+        assertCbor("f97e00", Double.NaN);
+        // Beyond 2^53 - 1 the value is no longer an exact JS integer
+        assertCbor("fa5a000000", 9007199254740992.0);
+    }
+
+    @Test
+    public void cborEncodesRfc8949Strings() {
+        assertCbor("60", "");
+        assertCbor("6161", "a");
+        assertCbor("6449455446", "IETF");
+        assertCbor("62225c", "\"\\");
+        assertCbor("62c3bc", "ü");
+        assertCbor("63e6b0b4", "水");
+        assertCbor("64f0908591", "𐅑");
+        assertCbor("f6", null);
+        assertCbor("f4", false);
+        assertCbor("f5", true);
+    }
+
+    @Test
+    public void cborEncodesRfc8949Containers() {
+        assertCbor("80", new ArrayList<>());
+        assertCbor("83010203", Arrays.asList(1.0, 2.0, 3.0));
+        assertCbor("8301820203820405", Arrays.asList(1.0, Arrays.asList(2.0, 3.0), Arrays.asList(4.0, 5.0)));
+        assertCbor("a0", new HashMap<>());
+
+        Map<String, Object> map = new HashMap<>();
+        map.put("b", Arrays.asList(2.0, 3.0));
+        map.put("a", 1.0);
+        assertCbor("a26161016162820203", map);
+
+        Map<String, Object> letters = new HashMap<>();
+        for (String letter : new String[]{"e", "c", "a", "d", "b"}) {
+            letters.put(letter, letter.toUpperCase());
+        }
+        assertCbor("a56161614161626142616361436164614461656145", letters);
+    }
+
+    @Test
+    public void cborSortsMapKeysByTheirEncoding() {
+        // Core deterministic encoding: bytewise order of the encoded keys, so shorter keys come first
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("aa", 1.0);
+        map.put("b", 2.0);
+        map.put("é", 3.0);
+        map.put("z", 4.0);
+        assertCbor("a4616202617a0462616101" + "62c3a903", map);
+    }
+
+    // COSE_Sign1
+    // ______________________________________________
+    @Test
+    public void signCoseWrapsThePayloadOnce() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+        generator.initialize(new ECGenParameterSpec("secp256r1"));
+        KeyPair keyPair = generator.generateKeyPair();
+        Map<String, Object> claims = new HashMap<>();
+        claims.put("sub", "user");
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        TokenSigner.writeCbor(payload, claims);
+
+        Signature signer = Signature.getInstance("SHA256withECDSA");
+        signer.initSign(keyPair.getPrivate());
+        String token = TokenSigner.signCose(payload.toByteArray(), signer);
+        byte[] decoded = new byte[Codec.maxDecodedLength(token)];
+        byte[] cose = Arrays.copyOf(decoded, Codec.decode(token, decoded));
+
+        // 18([h'a10126', {}, h'<payload>', h'<64 byte signature>'])
+        String prefix = "d28443a10126a04a" + "a1637375626475736572" + "5840";
+        assertEquals(prefix, hex(Arrays.copyOf(cose, prefix.length() / 2)));
+        byte[] raw = Arrays.copyOfRange(cose, prefix.length() / 2, cose.length);
+        assertEquals(64, raw.length);
+
+        // Sig_structure = ["Signature1", h'a10126', h'', h'<payload>']
+        Signature verifier = Signature.getInstance("SHA256withECDSA");
+        verifier.initVerify(keyPair.getPublic());
+        verifier.update(unhex("846a5369676e61747572653143a10126404a" + "a1637375626475736572"));
+        assertTrue(verifier.verify(joseToDer(raw)));
+    }
+
+    // HELPERS
+    // ______________________________________________
+    private static void assertCbor(String expected, Object value) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        TokenSigner.writeCbor(out, value);
+        assertEquals(String.valueOf(value), expected, hex(out.toByteArray()));
+    }
+
+    private static byte[] filled(int length, int value) {
+        byte[] bytes = new byte[length];
+        Arrays.fill(bytes, (byte) value);
+        return bytes;
+    }
+
+    private static byte[] concat(byte[] a, byte[] b) {
+        byte[] out = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, out, a.length, b.length);
+        return out;
+    }
+
+    private static byte[] integer(byte[] value) {
+        return concat(new byte[]{0x02, (byte) value.length}, value);
+    }
+
+    private static byte[] der(byte[] r, byte[] s) {
+        byte[] body = concat(r, s);
+        return concat(new byte[]{0x30, (byte) body.length}, body);
+    }
+
+    private static byte[] joseToDer(byte[] raw) {
+        byte[] r = new BigInteger(1, Arrays.copyOfRange(raw, 0, 32)).toByteArray();
+        byte[] s = new BigInteger(1, Arrays.copyOfRange(raw, 32, 64)).toByteArray();
+        return der(integer(r), integer(s));
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder();
+        for (byte b : bytes) {
+            sb.append(String.format("%02x", b & 0xff));
+        }
+        return sb.toString();
+    }
+
+    private static byte[] unhex(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,87 @@
+import { DeviceEventEmitter, Platform } from 'react-native';
+
+export enum DeviceCryptoEvent {
+  KEY_CHANGED = 'DeviceCryptoKeyChanged',
+  SECURITY_CHANGED = 'DeviceCryptoSecurityChanged',
+  JOBS_SETTLED = 'DeviceCryptoJobsSettled',
+}
+
+export enum KeyChange {
+  CREATED = 'CREATED',
+  DELETED = 'DELETED',
+  INVALIDATED = 'INVALIDATED',
+}
+
+export enum KeySecurityLevel {
+  STRONGBOX = 'STRONGBOX',
+  TRUSTED_ENVIRONMENT = 'TRUSTED_ENVIRONMENT',
+  /**
+   * Hardware backed, StrongBox and TEE cannot be told apart before Android 12
+   */
+  SECURE_HARDWARE = 'SECURE_HARDWARE',
+  SOFTWARE = 'SOFTWARE',
+}
+
+export interface KeyChangedEvent {
+  alias: string;
+  change: KeyChange;
+  /**
+   * Where the key was created, only for `CREATED`
+   */
+  securityLevel?: KeySecurityLevel;
+}
+
+// Only the Android module emits the events which keep the cache fresh
+const enabled = Platform.OS === 'android';
+const entries = new Map<string, Promise<any>>();
+
+const CAPABILITIES = ['biometryType', 'securityLevel', 'biometryEnrolled'];
+
+/**
+ * Serves the value from memory, loads it over the bridge only on the first call.
+ * Concurrent callers share the same pending promise, failures are not cached.
+ */
+export function cached<T>(key: string, load: () => Promise<T>): Promise<T> {
+  if (!enabled) {
+    return load();
+  }
+
+  const hit = entries.get(key);
+  if (hit) {
+    return hit;
+  }
+
+  const pending = load();
+  entries.set(key, pending);
+  pending.catch(() => {
+    if (entries.get(key) === pending) {
+      entries.delete(key);
+    }
+  });
+  return pending;
+}
+
+export function invalidateKey(alias: string) {
+  entries.delete(`publicKey:${alias}`);
+  entries.delete(`keyExists:${alias}:0`);
+  entries.delete(`keyExists:${alias}:1`);
+}
+
+export function invalidateCapabilities() {
+  CAPABILITIES.forEach((key) => entries.delete(key));
+}
+
+export function clear() {
+  entries.clear();
+}
+
+if (enabled) {
+  DeviceEventEmitter.addListener(
+    DeviceCryptoEvent.KEY_CHANGED,
+    (event: KeyChangedEvent) => invalidateKey(event.alias)
+  );
+  DeviceEventEmitter.addListener(
+    DeviceCryptoEvent.SECURITY_CHANGED,
+    invalidateCapabilities
+  );
+}
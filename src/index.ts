@@ -1,11 +1,31 @@
 import { NativeModules } from 'react-native';
+import * as Cache from './cache';
+import type { KeySecurityLevel } from './cache';
+
+export { DeviceCryptoEvent, KeyChange, KeySecurityLevel } from './cache';
+export type { KeyChangedEvent } from './cache';
 
 const RNDeviceCrypto = NativeModules.DeviceCrypto;
 
+let operationCounter = 0;
+
+// Native operations are registered under an id, so any of them can be cancelled
+function withOperationId<T extends { operationId?: string }>(options: T): T {
+  if (options?.operationId) {
+    return options;
+  }
+  return { ...options, operationId: DeviceCrypto.createOperationId() };
+}
+
 export interface BiometryParams {
   biometryTitle: string;
   biometrySubTitle: string;
   biometryDescription: string;
+  /**
+   * Identifies the operation so it can be cancelled with `cancel` while in progress.
+   * Generated when not given, pass one from `createOperationId` to be able to cancel it.
+   */
+  operationId?: string;
 }
 
 export enum AccessLevel {
@@ -13,9 +33,40 @@ export enum AccessLevel {
   UNLOCKED_DEVICE = 1,
   AUTHENTICATION_REQUIRED = 2,
 }
+export enum KeyPlacement {
+  /**
+   * The backend with the lowest measured latency, in practice the TEE
+   */
+  PREFER_FAST = 0,
+  /**
+   * StrongBox or fail
+   */
+  REQUIRE_STRONGBOX = 1,
+  /**
+   * StrongBox if available (and within `strongBoxLatencyBudget`), TEE otherwise
+   */
+  PREFER_STRONGBOX = 2,
+}
+
 export interface KeyCreationParams {
   accessLevel: AccessLevel;
   invalidateOnNewBiometry?: boolean;
+  /**
+   * Android 9+ only. Defaults to `PREFER_STRONGBOX` for `AUTHENTICATION_REQUIRED` keys on Android 12+,
+   * TEE for other keys.
+   */
+  placement?: KeyPlacement;
+  /**
+   * Milliseconds a single sign/encrypt may take on StrongBox with `PREFER_STRONGBOX`,
+   * compared against the measured latency of the device once it's known.
+   */
+  strongBoxLatencyBudget?: number;
+  /**
+   * Seconds an `AUTHENTICATION_REQUIRED` key stays usable after the user authenticates,
+   * required to queue jobs with `enqueueJobs`. `0` (default) asks for authentication on every use.
+   * Android only.
+   */
+  authenticationValidityDuration?: number;
 }
 
 export enum KeyTypes {
@@ -27,6 +78,90 @@ export interface EncryptionResult {
   encryptedText: string;
 }
 
+export interface WrappedKeyImport {
+  alias: string;
+  /**
+   * Base64 DER encoded `SecureKeyWrapper`, wrapped to the public key of `createWrappingKey`
+   */
+  wrappedKey: string;
+}
+
+export interface KeyImport extends Partial<KeyCreationParams> {
+  alias: string;
+  keyType: KeyTypes;
+  /**
+   * Base64 raw AES key for `SYMMETRIC`, Base64 PKCS#8 DER EC private key for `ASYMMETRIC`
+   */
+  key: string;
+  /**
+   * Base64 DER X.509 certificate of the public key, required for `ASYMMETRIC`
+   */
+  certificate?: string;
+}
+
+export interface KeyImportOptions {
+  /**
+   * Replace keys that already exist under the same alias, defaults to `false`
+   */
+  overwrite?: boolean;
+}
+
+export interface KeyImportResult {
+  alias: string;
+  success: boolean;
+  error?: string;
+}
+
+export enum JobType {
+  SIGN = 'SIGN',
+  ENCRYPT = 'ENCRYPT',
+}
+
+export interface Job {
+  alias: string;
+  type: JobType;
+  plainText: string;
+  /**
+   * Defaults to a random id, give your own to make replays idempotent
+   */
+  id?: string;
+}
+
+export interface SettledJob {
+  id: string;
+  alias: string;
+  type: JobType;
+  /**
+   * Signature for `SIGN`, encrypted text for `ENCRYPT`, `Base64` formatted
+   */
+  result?: string;
+  iv?: string;
+  error?: string;
+}
+
+export interface JobsSettledEvent {
+  jobs: SettledJob[];
+}
+
+export interface DrainResult {
+  settled: number;
+  pending: number;
+  authenticationRequired: boolean;
+}
+
+export interface BackendLatencies {
+  generateKeyPair: number;
+  generateSecretKey: number;
+  sign: number;
+  encrypt: number;
+}
+
+export interface KeyPlacementProfile {
+  isStrongBoxAvailable: boolean;
+  trustedEnvironment: BackendLatencies;
+  strongBox?: BackendLatencies;
+}
+
 export enum BiometryType {
   NONE = 'NONE',
   TOUCH = 'TOUCH',
@@ -55,10 +190,12 @@ const DeviceCrypto = {
     alias: string,
     options: KeyCreationParams
   ): Promise<string> {
-    return RNDeviceCrypto.createKey(alias, {
+    const publicKey = await RNDeviceCrypto.createKey(alias, {
       ...options,
       keyType: KeyTypes.ASYMMETRIC,
     });
+    Cache.invalidateKey(alias);
+    return publicKey;
   },
 
   /**
@@ -73,10 +210,64 @@ const DeviceCrypto = {
     alias: string,
     options: KeyCreationParams
   ): Promise<boolean> {
-    return RNDeviceCrypto.createKey(alias, {
+    const created = await RNDeviceCrypto.createKey(alias, {
       ...options,
       keyType: KeyTypes.SYMMETRIC,
     });
+    Cache.invalidateKey(alias);
+    return created;
+  },
+
+  /**
+   * Create the RSA wrapping key that server provisioned keys are wrapped to
+   *
+   * Android 9+ only.
+   *
+   * @return {Promise} Resolves to PEM formatted public key of the wrapping key
+   */
+  async createWrappingKey(alias: string): Promise<string> {
+    return RNDeviceCrypto.createWrappingKey(alias);
+  },
+
+  /**
+   * Import securely wrapped keys into the secure hardware in a single call.
+   * Key material is unwrapped inside the secure hardware and never exposed to the app.
+   *
+   * Android 9+ only.
+   *
+   * @return {Promise} Resolves to a result for each entry, in the same order
+   */
+  async importWrappedKeys(
+    wrappingAlias: string,
+    entries: WrappedKeyImport[],
+    options: KeyImportOptions = {}
+  ): Promise<KeyImportResult[]> {
+    const results: KeyImportResult[] = await RNDeviceCrypto.importWrappedKeys(
+      wrappingAlias,
+      entries,
+      options
+    );
+    results.forEach((result) => Cache.invalidateKey(result.alias));
+    return results;
+  },
+
+  /**
+   * Import plain (software generated) keys into the keystore in a single call.
+   *
+   * Android only.
+   *
+   * @return {Promise} Resolves to a result for each entry, in the same order
+   */
+  async importKeys(
+    entries: KeyImport[],
+    options: KeyImportOptions = {}
+  ): Promise<KeyImportResult[]> {
+    const results: KeyImportResult[] = await RNDeviceCrypto.importKeys(
+      entries,
+      options
+    );
+    results.forEach((result) => Cache.invalidateKey(result.alias));
+    return results;
   },
 
   /**
@@ -85,16 +276,21 @@ const DeviceCrypto = {
    * @return {Promise} Resolves to `true` when successful
    */
   async deleteKey(alias: string): Promise<boolean> {
-    return Boolean(RNDeviceCrypto.deleteKey(alias));
+    const deleted = Boolean(await RNDeviceCrypto.deleteKey(alias));
+    Cache.invalidateKey(alias);
+    return deleted;
   },
 
   /**
    * Get the public key as PEM formatted
+   * Served from memory after the first call until the key changes (Android)
    *
    * @return {Promise} Resolves to public key when successful
    */
   async getPublicKey(alias: string): Promise<string> {
-    return RNDeviceCrypto.getPublicKey(alias);
+    return Cache.cached(`publicKey:${alias}`, () =>
+      RNDeviceCrypto.getPublicKey(alias)
+    );
   },
 
   /**
@@ -108,7 +304,46 @@ const DeviceCrypto = {
     plainText: string,
     options: BiometryParams
   ): Promise<string> {
-    return RNDeviceCrypto.sign(alias, plainText, options);
+    return RNDeviceCrypto.sign(alias, plainText, withOperationId(options));
+  },
+
+  /**
+   * Creates a compact JWS (ES256) in a single native call.
+   * The header and claims are serialized with sorted keys, Base64url encoded and signed,
+   * the DER signature is converted to the raw `r||s` form required by JOSE.
+   * `alg` is always set to `ES256` and `typ` defaults to `JWT`.
+   *
+   * Android only.
+   *
+   * @return {Promise} Resolves to `header.payload.signature` when successful
+   */
+  async signJws(
+    alias: string,
+    header: Record<string, unknown> | null,
+    claims: Record<string, unknown>,
+    options: BiometryParams
+  ): Promise<string> {
+    return RNDeviceCrypto.signJws(
+      alias,
+      header,
+      claims,
+      withOperationId(options)
+    );
+  },
+
+  /**
+   * Creates a tagged COSE_Sign1 (ES256) structure whose payload is the CBOR encoded claims.
+   *
+   * Android only.
+   *
+   * @return {Promise} Resolves to the COSE_Sign1 bytes `Base64url` formatted
+   */
+  async signCose(
+    alias: string,
+    claims: Record<string, unknown>,
+    options: BiometryParams
+  ): Promise<string> {
+    return RNDeviceCrypto.signCose(alias, claims, withOperationId(options));
   },
 
   /**
@@ -122,7 +357,7 @@ const DeviceCrypto = {
     plainText: string,
     options: BiometryParams
   ): Promise<EncryptionResult> {
-    return RNDeviceCrypto.encrypt(alias, plainText, options);
+    return RNDeviceCrypto.encrypt(alias, plainText, withOperationId(options));
   },
 
   /**
@@ -138,16 +373,145 @@ const DeviceCrypto = {
     iv: string,
     options: BiometryParams
   ): Promise<string> {
-    return RNDeviceCrypto.decrypt(alias, plainText, iv, options);
+    return RNDeviceCrypto.decrypt(
+      alias,
+      plainText,
+      iv,
+      withOperationId(options)
+    );
+  },
+
+  /**
+   * Queue sign/encrypt jobs for keys which need the user to be present.
+   * Jobs are kept in an encrypted journal until they are acknowledged, they survive app restarts.
+   * Keys must be created with `authenticationValidityDuration`.
+   *
+   * Android only.
+   *
+   * @return {Promise} Resolves to the ids of the jobs, in the same order
+   */
+  async enqueueJobs(jobs: Job[]): Promise<string[]> {
+    return RNDeviceCrypto.enqueueJobs(jobs);
+  },
+
+  /**
+   * Run the queued jobs whose keys are usable. If a key needs authentication and `options` are given,
+   * a single prompt is shown and the rest of the queue is settled with it.
+   * Results are delivered through the `JOBS_SETTLED` event and `getSettledJobs`.
+   * Jobs are also drained when the app comes to foreground.
+   *
+   * Android only.
+   */
+  async drainJobs(options?: BiometryParams): Promise<DrainResult> {
+    const result: DrainResult = await RNDeviceCrypto.drainJobs();
+    if (!result.authenticationRequired || !options) {
+      return result;
+    }
+
+    await DeviceCrypto.authenticateForJobs(options);
+    const retry: DrainResult = await RNDeviceCrypto.drainJobs();
+    return { ...retry, settled: result.settled + retry.settled };
+  },
+
+  /**
+   * Show a prompt which opens the authentication validity window of the keys with queued jobs,
+   * eg. to run `drainJobs` later in a batch. Accepts device credentials as well as strong biometrics.
+   *
+   * Android only.
+   *
+   * @return {Promise} Resolves to `true` once the user authenticated
+   */
+  async authenticateForJobs(options: BiometryParams): Promise<boolean> {
+    return RNDeviceCrypto.authenticateForJobs(withOperationId(options));
+  },
+
+  /**
+   * Get the jobs which are settled but not acknowledged yet, eg. settled while no listener was registered.
+   *
+   * Android only.
+   */
+  async getSettledJobs(): Promise<SettledJob[]> {
+    return RNDeviceCrypto.getSettledJobs();
+  },
+
+  /**
+   * Remove the settled jobs from the journal once their results are stored.
+   *
+   * Android only.
+   *
+   * @return {Promise} Resolves to the number of removed jobs
+   */
+  async acknowledgeJobs(ids: string[]): Promise<number> {
+    return RNDeviceCrypto.acknowledgeJobs(ids);
+  },
+
+  /**
+   * Encrypt a file with the given symmetric key into chunks that can be decrypted on demand.
+   * The key must not require authentication to be usable by `getDecryptingUri`.
+   *
+   * Android only.
+   *
+   * @return {Promise} Resolves to `true` when successful
+   */
+  async encryptFile(
+    alias: string,
+    inputPath: string,
+    outputPath: string
+  ): Promise<boolean> {
+    return RNDeviceCrypto.encryptFile(alias, inputPath, outputPath);
+  },
+
+  /**
+   * Get a `content://` URI which serves the plaintext of a file created by `encryptFile`.
+   * It can be given to image and video components directly, the file is decrypted while it's read
+   * and seeking only decrypts the requested range. No plaintext is written to disk.
+   *
+   * Android only.
+   *
+   * @return {Promise} Resolves to the URI
+   */
+  async getDecryptingUri(
+    alias: string,
+    path: string,
+    mimeType?: string
+  ): Promise<string> {
+    return RNDeviceCrypto.getDecryptingUri(alias, path, mimeType ?? null);
   },
 
   /**
    * Checks the key existence
+   * Served from memory after the first call until the key changes (Android)
    *
    * @return {Promise} Resolves to `true` if exists
    */
   async isKeyExists(alias: string, keyType: KeyTypes): Promise<boolean> {
-    return RNDeviceCrypto.isKeyExists(alias, keyType);
+    return Cache.cached(`keyExists:${alias}:${keyType}`, () =>
+      RNDeviceCrypto.isKeyExists(alias, keyType)
+    );
+  },
+
+  /**
+   * Where the key lives, StrongBox keys may have fallen back to the TEE when they were created.
+   *
+   * Android only.
+   */
+  async getKeySecurityLevel(
+    alias: string,
+    keyType: KeyTypes
+  ): Promise<KeySecurityLevel> {
+    return RNDeviceCrypto.getKeySecurityLevel(alias, keyType);
+  },
+
+  /**
+   * Median latencies (ms) of StrongBox and TEE on this device, used by `PREFER_FAST` and
+   * `strongBoxLatencyBudget`. Measured once and persisted until the next system update.
+   * Keys created before the measurement use the TEE with `PREFER_FAST` and ignore the budget,
+   * call it early (eg. on app start).
+   *
+   * Android only.
+   */
+  async getKeyPlacementProfile(): Promise<KeyPlacementProfile> {
+    return RNDeviceCrypto.getKeyPlacementProfile();
   },
 
   /**
@@ -156,7 +520,9 @@ const DeviceCrypto = {
    * @returns {Promise} Resolves `true` if biometry is enrolled on the device
    */
   async isBiometryEnrolled(): Promise<boolean> {
-    return RNDeviceCrypto.isBiometryEnrolled();
+    return Cache.cached('biometryEnrolled', () =>
+      RNDeviceCrypto.isBiometryEnrolled()
+    );
   },
 
   /**
@@ -165,7 +531,9 @@ const DeviceCrypto = {
    * @return {Promise} Resolves one of `SecurityLevel`
    */
   async deviceSecurityLevel(): Promise<SecurityLevel> {
-    return RNDeviceCrypto.deviceSecurityLevel() as SecurityLevel;
+    return Cache.cached('securityLevel', () =>
+      RNDeviceCrypto.deviceSecurityLevel()
+    );
   },
 
   /**
@@ -174,7 +542,9 @@ const DeviceCrypto = {
    * @returns {Promise} Resolves `BiometryType`
    */
   async getBiometryType(): Promise<BiometryType> {
-    return RNDeviceCrypto.getBiometryType() as BiometryType;
+    return Cache.cached('biometryType', () =>
+      RNDeviceCrypto.getBiometryType()
+    );
   },
 
   /**
@@ -184,11 +554,39 @@ const DeviceCrypto = {
    */
   async authenticateWithBiometry(options: BiometryParams): Promise<boolean> {
     try {
-      return RNDeviceCrypto.authenticateWithBiometry(options);
+      return RNDeviceCrypto.authenticateWithBiometry(withOperationId(options));
     } catch (err: any) {
       throw err;
     }
   },
+
+  /**
+   * Creates an id for the `operationId` option, unique within the JS context.
+   */
+  createOperationId(): string {
+    operationCounter += 1;
+    return `op-${Date.now().toString(36)}-${operationCounter.toString(36)}`;
+  },
+
+  /**
+   * Cancels an in-flight operation started with the given `operationId`.
+   * Its biometric prompt is dismissed and the promise is rejected with `CANCELLED` code.
+   *
+   * Android only.
+   *
+   * @returns {Promise} Resolves `true` if the operation was still in progress
+   */
+  async cancel(operationId: string): Promise<boolean> {
+    return RNDeviceCrypto.cancel(operationId);
+  },
+
+  /**
+   * Drops the memoized public keys, key existence and device capabilities.
+   * Android keeps them fresh with native events, call this after changing keys outside of this module.
+   */
+  clearCache(): void {
+    Cache.clear();
+  },
 };
 
 export default DeviceCrypto;